@@ -2,59 +2,72 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.List;
 import java.util.PriorityQueue;
-import java.util.Stack;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
+/**
+ * Matches are packed into a long, distance in the upper and length in the
+ * lower half, so finding and writing them allocates nothing.
+ */
 class Match {
-    public static final int SERIALIZED_BYTES = Short.BYTES * 2;
+    public static final long NONE = 0;
 
-    private final int distance;
-    private final int length;
-
-    public Match(int distance, int length) {
-        this.distance = distance;
-        this.length = length;
-    }
-
-    public int getDistance() {
-        return distance;
+    private Match() {
     }
 
-    public int getLength() {
-        return length;
+    public static long of(int distance, int length) {
+        return (long) distance << Integer.SIZE | length;
     }
 
-    public byte[] serialize() {
-        try {
-            ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream(SERIALIZED_BYTES);
-            DataOutputStream outputStream = new DataOutputStream(byteOutputStream);
-            outputStream.writeShort(distance);
-            outputStream.writeShort(length);
-            return byteOutputStream.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    public static int getDistance(long match) {
+        return (int) (match >>> Integer.SIZE);
     }
 
-    public static Match deserialize(byte[] data) {
-        try {
-            ByteArrayInputStream byteOutputStream = new ByteArrayInputStream(data);
-            DataInputStream inputStream = new DataInputStream(byteOutputStream);
-            int distance = inputStream.readShort();
-            int length = inputStream.readShort();
-            return new Match(distance, length);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    public static int getLength(long match) {
+        return (int) match;
     }
 }
 
@@ -68,213 +81,314 @@ class ArrayWithSize {
     }
 }
 
-class RingBuffer {
-    private final byte[] buffer;
-    private final int indexMask;
-    private int startIndex = 0;
-    private int endIndex = 0;
-    private int size = 0;
-
-    public RingBuffer(int capacity) {
-        if (Integer.highestOneBit(capacity) != capacity) {
-            throw new IllegalArgumentException("capacity was not power of 2");
-        }
-        indexMask = ~(1 << Integer.numberOfTrailingZeros(capacity));
-        buffer = new byte[capacity];
-    }
-
-    public int getSize() {
-        return size;
-    }
-
-    private void pushByte(byte b) {
-        buffer[endIndex] = b;
-        endIndex = (endIndex + 1) & indexMask;
-        size++;
-    }
+/**
+ * Bytes the match finder searches, indexed from the oldest byte still available.
+ */
+interface ByteWindow {
+    int getSize();
 
-    public void drop(int bytes) {
-        if (bytes > size) {
-            throw new IllegalStateException("cannot drop more than size");
-        }
-        startIndex = (startIndex + bytes) & indexMask;
-        size -= bytes;
-    }
+    byte get(int index);
 
-    public void add(byte b) {
-        if (size == buffer.length) {
-            throw new IllegalStateException("buffer is full");
+    /**
+     * @return how many of the maxLength bytes from candidate equal those from
+     *         index
+     */
+    default int getMatchLength(int candidate, int index, int maxLength) {
+        int length = 0;
+        while (length < maxLength && get(candidate + length) == get(index + length)) {
+            length++;
         }
-        pushByte(b);
+        return length;
     }
 
-    public void addAll(byte[] array, int offset, int length) {
-        int count = length - offset;
-        if (size + count > buffer.length) {
-            throw new IllegalArgumentException(
-                    "not enough space in buffer " + (buffer.length - size) + " B left, adding " + count);
-        }
-        for (int i = offset; i < length; i++) {
-            pushByte(array[i]);
+    /**
+     * Compares two arrays of which at least maxLength bytes from each offset
+     * are readable, 8 bytes at a time: in little-endian order the lowest set
+     * bit of the difference of two words falls in their first differing byte.
+     */
+    static int getMatchLength(VarHandle longView, byte[] array, int candidate, int index, int maxLength) {
+        int length = 0;
+        for (; length + Long.BYTES <= maxLength; length += Long.BYTES) {
+            long difference = (long) longView.get(array, candidate + length)
+                    ^ (long) longView.get(array, index + length);
+            if (difference != 0) {
+                return length + (Long.numberOfTrailingZeros(difference) >>> 3);
+            }
         }
-    }
-
-    public byte get(int index) {
-        if (index < 0 || index > size) {
-            throw new IndexOutOfBoundsException("attempted to read index " + index + " when size was " + size);
+        while (length < maxLength && array[candidate + length] == array[index + length]) {
+            length++;
         }
-        return buffer[(startIndex + index) & indexMask];
+        return length;
     }
 }
 
-class OutputWriter {
-    public static final int MAX_ENTRIES = 127;
-    public static final int BYTE_ENTRY_SIZE = 1;
-    public static final int MATCH_ENTRY_SIZE = Match.SERIALIZED_BYTES;
+/**
+ * Window over bytes that are all in memory already, e.g. a block or a mapped file region.
+ */
+class ByteBufferWindow implements ByteWindow {
+    private static final VarHandle LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
 
-    private final int outputChunkSize;
-    private byte[] finalizedOutput; // Only returned when output is full or getfinalblock is called
+    private final ByteBuffer buffer;
+    private final int size;
 
-    private boolean isCompressed = false;
-    private byte[] outputChunk; // The array we write to and fill. Refresh when filled up
-    private byte[] blockStartArray;
-    private int blockStartIndex;
-    private int entryIndex;
-    private int entryCount;
+    public ByteBufferWindow(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+        this.size = this.buffer.remaining();
+    }
 
-    public OutputWriter(int outputChunkSize) {
-        this.outputChunkSize = outputChunkSize;
-        this.outputChunk = new byte[outputChunkSize];
+    public int getSize() {
+        return size;
+    }
 
-        blockStartArray = outputChunk;
-        blockStartIndex = 0;
-        entryIndex = blockStartIndex + 1;
-        entryCount = 0;
+    public byte get(int index) {
+        return buffer.get(index);
     }
 
-    private void finalizeEntryBlock() {
-        if (entryCount == 0) {
-            return;
+    public int getMatchLength(int candidate, int index, int maxLength) {
+        // see ByteWindow.getMatchLength(VarHandle, ...), the buffer may be a mapped region rather than an array
+        int length = 0;
+        for (; length + Long.BYTES <= maxLength; length += Long.BYTES) {
+            long difference = (long) LONG_VIEW.get(buffer, candidate + length)
+                    ^ (long) LONG_VIEW.get(buffer, index + length);
+            if (difference != 0) {
+                return length + (Long.numberOfTrailingZeros(difference) >>> 3);
+            }
         }
-
-        int multiplier = isCompressed ? -1 : 1;
-        blockStartArray[blockStartIndex] = (byte) (entryCount * multiplier);
-        if (blockStartArray != outputChunk) {
-            finalizedOutput = blockStartArray;
+        while (length < maxLength && buffer.get(candidate + length) == buffer.get(index + length)) {
+            length++;
         }
-
-        allocateNewChunkIfFull();
-        entryCount = 0;
-        blockStartIndex = entryIndex++;
-        blockStartArray = outputChunk;
+        return length;
     }
+}
 
-    private void allocateNewChunkIfFull() {
-        if (entryIndex < outputChunkSize) {
-            return;
-        }
-        entryIndex = 0;
-        outputChunk = new byte[outputChunkSize];
-    }
+/**
+ * Receives the literals and matches chosen by the Lempel-Ziv parser, in input
+ * order, and knows roughly what each costs in its output format.
+ */
+interface TokenSink {
+    /**
+     * Matches must be longer than this to be worth writing.
+     */
+    int getMinMatchLength();
 
-    private void incrementEntryCount() {
-        if (++entryCount == MAX_ENTRIES) {
-            finalizeEntryBlock();
-        }
-    }
+    /**
+     * Approximate cost of a literal, in a unit of the sink's choosing.
+     */
+    int getLiteralCost();
 
-    private void setCompressed(boolean compressed) {
-        if (isCompressed != compressed) {
-            finalizeEntryBlock();
-        }
-        isCompressed = compressed;
-    }
+    /**
+     * Approximate cost of a match, in the same unit as {@link #getLiteralCost()}.
+     */
+    int getMatchCost(int distance, int length);
 
-    public void writeMatch(Match match) {
-        setCompressed(true);
-        allocateNewChunkIfFull();
+    /**
+     * Extra cost of a literal after a match or a match after a literal.
+     */
+    int getSwitchCost();
 
-        byte[] serialized = match.serialize();
-        for (int i = 0; i < serialized.length; i++) {
-            outputChunk[entryIndex++] = serialized[i];
-            if (i < serialized.length - 1) {
-                allocateNewChunkIfFull();
-            }
-        }
-        incrementEntryCount();
-    }
+    boolean isLastEntryMatch();
 
-    public void writeByte(byte b) {
-        setCompressed(false);
-        allocateNewChunkIfFull();
+    void writeByte(byte b) throws IOException;
 
-        outputChunk[entryIndex++] = b;
-        incrementEntryCount();
-    }
+    void writeMatch(long match) throws IOException;
 
-    public byte[] getFullChunk() {
-        byte[] fullChunk = finalizedOutput;
-        finalizedOutput = null;
-        return fullChunk;
-    }
+    /**
+     * Writes out everything still buffered. No tokens may follow.
+     */
+    void finish() throws IOException;
 
-    public ArrayWithSize getFinalChunk() {
-        finalizeEntryBlock();
-        byte[] finalChunk = outputChunk;
-        outputChunk = null;
-        return new ArrayWithSize(finalChunk, entryIndex);
-    }
+    void addStatistics(Statistics statistics);
 }
 
+/**
+ * Hash chain match finder. Positions are chained by a hash of their first 4
+ * bytes, but the chains only reach back {@link #MAX_CHAIN_SIZE} positions, so
+ * that tables stay small for large windows. Beyond that the window is
+ * searched through a second table holding the last position of each 8 byte
+ * string, which is what finds repeats megabytes apart.
+ *
+ * The tables of a released window are kept for the next window created on
+ * the same thread, so that compressing many small inputs does not allocate
+ * them again each time.
+ */
 class SlidingWindow {
-    private final RingBuffer buffer;
+    static final int MAX_CHAIN_SIZE = 65536;
+    private static final int MIN_HASH_BITS = 15;
+    private static final int MAX_HASH_BITS = 20;
+    private static final int MAX_LONG_HASH_BITS = 22;
+    private static final int HASH_BYTES = 4;
+    private static final int LONG_HASH_BYTES = 8;
+    private static final int NIL = -1;
+
+    private final ByteWindow buffer;
     private final int windowSize;
+    private final int chainSize;
+    private final int chainMask;
+    private final int hashBits;
+    private final int longHashBits;
     private final int lookaheadSize;
     private final int minMatchLength;
+    private final int maxChainDepth;
+    private final int niceLength;
+    private final int[] head; // hash -> most recent position
+    private final int[] prev; // position & chainMask -> previous position with same hash
+    private final int[] longHead; // hash of 8 bytes -> most recent position, only when the chains are shorter than the window
+    private static final ThreadLocal<int[][]> releasedTables = new ThreadLocal<>(); // head, prev, longHead
     private int offset = 0;
     private int divider = 0;
+    private int insertIndex = 0; // next position to be added to the hash chains
+    private long searchCount = 0;
+    private long probeCount = 0;
 
-    public SlidingWindow(RingBuffer buffer, int windowSize, int lookaheadSize, int minMatchLength) {
+    public SlidingWindow(ByteWindow buffer, int windowSize, int lookaheadSize, int minMatchLength, int maxChainDepth,
+            int niceLength) {
+        if (Integer.highestOneBit(windowSize) != windowSize) {
+            throw new IllegalArgumentException("windowSize was not power of 2");
+        }
         this.buffer = buffer;
         this.windowSize = windowSize;
+        this.chainSize = Math.min(windowSize, MAX_CHAIN_SIZE);
+        this.chainMask = chainSize - 1;
+        int windowBits = Integer.numberOfTrailingZeros(windowSize);
+        this.hashBits = Math.max(MIN_HASH_BITS, Math.min(windowBits, MAX_HASH_BITS));
+        this.longHashBits = Math.min(windowBits, MAX_LONG_HASH_BITS);
         this.lookaheadSize = lookaheadSize;
         this.minMatchLength = minMatchLength;
+        this.maxChainDepth = maxChainDepth;
+        this.niceLength = niceLength;
+        int longHeadSize = windowSize > chainSize ? 1 << longHashBits : 0;
+        int[][] tables = releasedTables.get();
+        if (tables != null && tables[0].length == 1 << hashBits && tables[1].length == chainSize
+                && (tables[2] == null ? 0 : tables[2].length) == longHeadSize) {
+            releasedTables.remove();
+            this.head = tables[0];
+            this.prev = tables[1];
+            this.longHead = tables[2];
+        } else {
+            this.head = new int[1 << hashBits];
+            this.prev = new int[chainSize];
+            this.longHead = longHeadSize > 0 ? new int[longHeadSize] : null;
+        }
+        Arrays.fill(head, NIL);
+        Arrays.fill(prev, NIL);
+        if (longHead != null) {
+            Arrays.fill(longHead, NIL);
+        }
+    }
+
+    /**
+     * Hands the tables to the next window created on this thread. The window
+     * must not be used afterwards.
+     */
+    public void release() {
+        releasedTables.set(new int[][] { head, prev, longHead });
+    }
+
+    private int hash(int index) {
+        int value = (buffer.get(index) & 0xFF) << 24
+                | (buffer.get(index + 1) & 0xFF) << 16
+                | (buffer.get(index + 2) & 0xFF) << 8
+                | (buffer.get(index + 3) & 0xFF);
+        return (value * 0x9E3779B1) >>> (Integer.SIZE - hashBits);
+    }
+
+    private int longHash(int index) {
+        long value = 0;
+        for (int i = 0; i < LONG_HASH_BYTES; i++) {
+            value = value << Byte.SIZE | (buffer.get(index + i) & 0xFF);
+        }
+        return (int) ((value * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - longHashBits));
+    }
+
+    private void insert(int index) {
+        int h = hash(index);
+        prev[index & chainMask] = head[h];
+        head[h] = index;
+        if (longHead != null && index + LONG_HASH_BYTES <= buffer.getSize()) {
+            longHead[longHash(index)] = index;
+        }
     }
 
     public void setDivider(int index) {
+        int insertEnd = Math.min(index, buffer.getSize() - HASH_BYTES + 1);
+        for (; insertIndex < insertEnd; insertIndex++) {
+            insert(insertIndex);
+        }
+        insertIndex = Math.max(insertIndex, index);
+
         divider = index;
-        offset = divider - windowSize;
+        // the window ends one byte short of windowSize, so that distances fit in log2(windowSize) bits
+        offset = divider - windowSize + 1;
         if (offset < 0) {
             offset = 0;
         }
     }
 
-    public Match findMatch() {
+    private int getMatchLength(int candidate, int lookaheadEnd) {
+        return buffer.getMatchLength(candidate, this.divider, lookaheadEnd);
+    }
+
+    /**
+     * @return the longest match found, packed as described in {@link Match}, or {@link Match#NONE}
+     */
+    public long findMatch() {
         int lookaheadEnd = Math.min(lookaheadSize, buffer.getSize() - this.divider);
+        if (lookaheadEnd <= minMatchLength) {
+            return Match.NONE;
+        }
 
         int matchIndex = -1;
         int matchLength = 0;
-        for (int i = this.offset; i < this.divider; i++) {
-            int j;
-            int jMax = Math.min(lookaheadEnd, this.divider - i);
-            for (j = 0; j < jMax; j++) {
-                if (buffer.get(i + j) != buffer.get(this.divider + j)) {
-                    break;
+        int candidate = head[hash(this.divider)];
+        // links of positions older than this have been overwritten by newer positions
+        int chainStart = Math.max(this.offset, insertIndex - chainSize);
+        int probes = 0;
+        for (int chain = maxChainDepth; candidate >= this.offset && chain > 0; chain--) {
+            probes++;
+            // matches may run on past the divider, the decoder copies overlapping matches in order
+            if (buffer.get(candidate + matchLength) == buffer.get(this.divider + matchLength)) {
+                int j = getMatchLength(candidate, lookaheadEnd);
+                if (j > matchLength) {
+                    matchIndex = candidate;
+                    matchLength = j;
+                    if (j == lookaheadEnd || j >= niceLength) {
+                        break;
+                    }
                 }
             }
-            if (j > matchLength) {
-                matchIndex = i;
-                matchLength = j;
+            if (candidate < chainStart) {
+                break;
+            }
+            candidate = prev[candidate & chainMask];
+        }
+
+        if (longHead != null && matchLength < niceLength && lookaheadEnd >= LONG_HASH_BYTES) {
+            candidate = longHead[longHash(this.divider)];
+            if (candidate >= this.offset && candidate != matchIndex) {
+                probes++;
+                int j = getMatchLength(candidate, lookaheadEnd);
+                if (j > matchLength) {
+                    matchIndex = candidate;
+                    matchLength = j;
+                }
             }
         }
+        searchCount++;
+        probeCount += probes;
 
         if (matchLength > minMatchLength) {
-            return new Match(this.divider - matchIndex, matchLength);
+            return Match.of(this.divider - matchIndex, matchLength);
         } else {
-            return null;
+            return Match.NONE;
         }
     }
 
+    public void addStatistics(Statistics statistics) {
+        statistics.matchFinderSearches += searchCount;
+        statistics.matchFinderProbes += probeCount;
+    }
+
     public byte getByte(int index) {
         if (index < offset || index >= divider) {
             throw new IndexOutOfBoundsException();
@@ -284,121 +398,334 @@ class SlidingWindow {
     }
 }
 
-class LempelZivAlgorithm {
-    private static final int MIN_MATCH_LENGTH = Match.SERIALIZED_BYTES + 1; // 5bytes
+class CompressionLevel {
+    public static final int MIN_LEVEL = 1;
+    public static final int MAX_LEVEL = 9;
+    public static final int DEFAULT_LEVEL = 6;
+
+    enum Parser {
+        GREEDY, LAZY, OPTIMAL
+    }
 
-    private static final int LOOKAHEAD_SIZE = 16384;
-    private static final int WINDOW_SIZE = 32768;
-    private static final int READ_CHUNK_SIZE = 131072; // 128 KiB
-    private static final int OUTPUT_CHUNK_SIZE = 16777220; // 16 MiB
-    private static final int RING_BUFFER_CAPACITY = 1048576; // 1 MiB
-    private static final int READ_THRESHOLD = RING_BUFFER_CAPACITY - Math.min(LOOKAHEAD_SIZE, WINDOW_SIZE);
+    private static final CompressionLevel[] LEVELS = {
+            new CompressionLevel(1, Parser.GREEDY, 4, 16),
+            new CompressionLevel(2, Parser.GREEDY, 8, 32),
+            new CompressionLevel(3, Parser.GREEDY, 32, 64),
+            new CompressionLevel(4, Parser.LAZY, 16, 32),
+            new CompressionLevel(5, Parser.LAZY, 32, 64),
+            new CompressionLevel(6, Parser.LAZY, 128, 128),
+            new CompressionLevel(7, Parser.LAZY, 512, 256),
+            new CompressionLevel(8, Parser.OPTIMAL, 256, 128),
+            new CompressionLevel(9, Parser.OPTIMAL, 2048, 512),
+    };
 
-    private final InputStream inputStream;
-    private final OutputStream outputStream;
+    private final int level;
+    private final Parser parser;
+    private final int maxChainDepth;
+    private final int niceLength;
+    private final int windowSize;
 
-    public LempelZivAlgorithm(InputStream inputStream, OutputStream outputStream) {
-        this.inputStream = new BufferedInputStream(inputStream);
-        this.outputStream = new BufferedOutputStream(outputStream);
+    private CompressionLevel(int level, Parser parser, int maxChainDepth, int niceLength) {
+        this(level, parser, maxChainDepth, niceLength, LempelZivAlgorithm.WINDOW_SIZE);
+    }
+
+    private CompressionLevel(int level, Parser parser, int maxChainDepth, int niceLength, int windowSize) {
+        this.level = level;
+        this.parser = parser;
+        this.maxChainDepth = maxChainDepth;
+        this.niceLength = niceLength;
+        this.windowSize = windowSize;
     }
 
-    private int readChunkIntoRingBuffer(RingBuffer buffer) throws IOException {
-        byte[] array = new byte[RING_BUFFER_CAPACITY - buffer.getSize()];
-        int bytesRead = inputStream.read(array);
-        if (bytesRead != -1) {
-            buffer.addAll(array, 0, bytesRead);
-            return bytesRead;
+    public static CompressionLevel of(int level) {
+        if (level < MIN_LEVEL || level > MAX_LEVEL) {
+            throw new IllegalArgumentException("level must be between " + MIN_LEVEL + " and " + MAX_LEVEL);
         }
-        return 0;
+        return LEVELS[level - MIN_LEVEL];
     }
 
-    public void compress() throws IOException {
-        RingBuffer buffer = new RingBuffer(RING_BUFFER_CAPACITY);
-        SlidingWindow window = new SlidingWindow(buffer, WINDOW_SIZE, LOOKAHEAD_SIZE, MIN_MATCH_LENGTH);
-        OutputWriter outputWriter = new OutputWriter(OUTPUT_CHUNK_SIZE);
+    public static CompressionLevel getDefault() {
+        return of(DEFAULT_LEVEL);
+    }
+
+    /**
+     * @return the same level searching a window of the given size, a power of 2
+     *         from {@link LempelZivAlgorithm#MIN_WINDOW_SIZE} to
+     *         {@link LempelZivAlgorithm#MAX_WINDOW_SIZE}
+     */
+    public CompressionLevel withWindowSize(int windowSize) {
+        if (Integer.highestOneBit(windowSize) != windowSize || windowSize < LempelZivAlgorithm.MIN_WINDOW_SIZE
+                || windowSize > LempelZivAlgorithm.MAX_WINDOW_SIZE) {
+            throw new IllegalArgumentException("window size must be a power of 2 between "
+                    + LempelZivAlgorithm.MIN_WINDOW_SIZE + " and " + LempelZivAlgorithm.MAX_WINDOW_SIZE);
+        }
+        return new CompressionLevel(level, parser, maxChainDepth, niceLength, windowSize);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public Parser getParser() {
+        return parser;
+    }
+
+    /**
+     * Maximum number of hash chain candidates tried per position.
+     */
+    public int getMaxChainDepth() {
+        return maxChainDepth;
+    }
+
+    /**
+     * Match length considered good enough to stop searching and, for the lazy
+     * and optimal parsers, to take without looking further.
+     */
+    public int getNiceLength() {
+        return niceLength;
+    }
+
+    /**
+     * How far back matches may reach, {@link LempelZivAlgorithm#WINDOW_SIZE}
+     * unless set by {@link #withWindowSize(int)}.
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+}
+
+class LempelZivAlgorithm {
+    static final int LOOKAHEAD_SIZE = 16384;
+    static final int WINDOW_SIZE = 32768;
+    static final int MIN_WINDOW_SIZE = WINDOW_SIZE;
+    static final int MAX_WINDOW_SIZE = 16777216; // 16 MiB
+    private static final int OPTIMAL_SEGMENT_SIZE = 4096;
+    private static final int UNREACHABLE_COST = Integer.MAX_VALUE / 2;
+
+    private final CompressionLevel level;
+    private final Statistics statistics = new Statistics();
+
+    // state of the optimal parser, indexed by position in the segment and reused between segments:
+    // the cost to reach each position with a literal or a match as the last entry, the entry before that,
+    // and the match used to get there
+    private int[] literalCost;
+    private int[] matchCost;
+    private boolean[] literalAfterMatch;
+    private boolean[] matchAfterMatch;
+    private int[] matchLength;
+    private int[] matchDistance;
+    private int[] entryLengths;
+
+    /**
+     * Creates an instance that hands tokens to a sink, see {@link #compress(ByteBuffer, TokenSink)}.
+     */
+    public LempelZivAlgorithm(CompressionLevel level) {
+        this.level = level;
+        if (level.getParser() == CompressionLevel.Parser.OPTIMAL) {
+            literalCost = new int[OPTIMAL_SEGMENT_SIZE + 1];
+            matchCost = new int[OPTIMAL_SEGMENT_SIZE + 1];
+            literalAfterMatch = new boolean[OPTIMAL_SEGMENT_SIZE + 1];
+            matchAfterMatch = new boolean[OPTIMAL_SEGMENT_SIZE + 1];
+            matchLength = new int[OPTIMAL_SEGMENT_SIZE + 1];
+            matchDistance = new int[OPTIMAL_SEGMENT_SIZE + 1];
+            entryLengths = new int[OPTIMAL_SEGMENT_SIZE];
+        }
+    }
+
+    /**
+     * @return the counters of everything compressed by this instance so far
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Picks the cheapest sequence of literals and matches for the positions
+     * starting at lookaheadIndex, using the costs given by the sink, and writes
+     * it.
+     * 
+     * @return the index following the last written position
+     */
+    private int writeOptimalSegment(ByteWindow buffer, SlidingWindow window, TokenSink sink, int lookaheadIndex,
+            boolean lastWasMatch) throws IOException {
+        int segmentEnd = Math.min(lookaheadIndex + OPTIMAL_SEGMENT_SIZE, buffer.getSize());
+        int segmentSize = segmentEnd - lookaheadIndex;
+
+        Arrays.fill(literalCost, 0, segmentSize + 1, UNREACHABLE_COST);
+        Arrays.fill(matchCost, 0, segmentSize + 1, UNREACHABLE_COST);
+        if (lastWasMatch) {
+            matchCost[0] = 0;
+        } else {
+            literalCost[0] = 0;
+        }
+
+        int literalCostEach = sink.getLiteralCost();
+        int switchCost = sink.getSwitchCost();
+        int minMatchLength = sink.getMinMatchLength();
+        for (int i = 0; i < segmentSize; i++) {
+            int literalFromLiteral = literalCost[i] + literalCostEach;
+            int literalFromMatch = matchCost[i] + switchCost + literalCostEach;
+            literalCost[i + 1] = Math.min(literalFromLiteral, literalFromMatch);
+            literalAfterMatch[i + 1] = literalFromMatch < literalFromLiteral;
 
-        readChunkIntoRingBuffer(buffer);
+            window.setDivider(lookaheadIndex + i);
+            long match = window.findMatch();
+            if (match == Match.NONE) {
+                continue;
+            }
+
+            if (Match.getLength(match) >= level.getNiceLength()) {
+                // long enough to take as is, end the segment here
+                writeOptimalPath(buffer, sink, lookaheadIndex, i);
+                sink.writeMatch(match);
+                return lookaheadIndex + i + Match.getLength(match);
+            }
 
-        boolean moreDataInStream = true;
-        // fill read-buffer with first arrays
-        for (int lookaheadIndex = 0; lookaheadIndex < buffer.getSize();) {
-            if (moreDataInStream && lookaheadIndex >= READ_THRESHOLD) {
-                buffer.drop(READ_CHUNK_SIZE);
-                int moveBack = readChunkIntoRingBuffer(buffer);
-                if (moveBack == 0) {
-                    moreDataInStream = false;
+            int matchFromLiteral = literalCost[i] + switchCost;
+            int matchFromMatch = matchCost[i];
+            int startCost = Math.min(matchFromLiteral, matchFromMatch);
+            int distance = Match.getDistance(match);
+            int maxLength = Math.min(Match.getLength(match), segmentSize - i);
+            for (int length = minMatchLength + 1; length <= maxLength; length++) {
+                int cost = startCost + sink.getMatchCost(distance, length);
+                if (cost < matchCost[i + length]) {
+                    matchCost[i + length] = cost;
+                    matchAfterMatch[i + length] = matchFromMatch < matchFromLiteral;
+                    matchLength[i + length] = length;
+                    matchDistance[i + length] = distance;
                 }
-                lookaheadIndex -= moveBack;
             }
-            window.setDivider(lookaheadIndex);
+        }
 
-            Match match = window.findMatch();
-            if (match == null) {
-                // System.out.printf("%c", buffer.get(lookaheadIndex) & 0xFF);
-                outputWriter.writeByte(buffer.get(lookaheadIndex));
-                lookaheadIndex++;
+        writeOptimalPath(buffer, sink, lookaheadIndex, segmentSize);
+        return segmentEnd;
+    }
+
+    private void writeOptimalPath(ByteWindow buffer, TokenSink sink, int lookaheadIndex, int segmentSize)
+            throws IOException {
+        // walk the cheapest path backwards, recording the length of each entry (1 for literals)
+        int entryCount = 0;
+        boolean isMatch = matchCost[segmentSize] < literalCost[segmentSize];
+        for (int i = segmentSize; i > 0;) {
+            if (isMatch) {
+                int length = matchLength[i];
+                entryLengths[entryCount++] = length;
+                isMatch = matchAfterMatch[i];
+                i -= length;
             } else {
-                // System.out.printf("(%d, %d)", match.getDistance(), match.getLength());
-                lookaheadIndex += match.getLength();
-                outputWriter.writeMatch(match);
+                entryLengths[entryCount++] = 1;
+                isMatch = literalAfterMatch[i];
+                i--;
             }
+        }
 
-            byte[] output = outputWriter.getFullChunk();
-            if (output != null) {
-                outputStream.write(output);
+        int index = 0;
+        for (int e = entryCount - 1; e >= 0; e--) {
+            int length = entryLengths[e];
+            if (length == 1) {
+                sink.writeByte(buffer.get(lookaheadIndex + index));
+            } else {
+                sink.writeMatch(Match.of(matchDistance[index + length], length));
             }
+            index += length;
         }
+    }
 
-        ArrayWithSize finalOutput = outputWriter.getFinalChunk();
-        if (finalOutput != null) {
-            outputStream.write(finalOutput.array, 0, finalOutput.size);
-        }
+    /**
+     * Compresses the remaining bytes of data, which may be a mapped file
+     * region, without copying them, and hands the tokens to sink. Matches
+     * reach back as far as the window size of the compression level.
+     */
+    public void compress(ByteBuffer data, TokenSink sink) throws IOException {
+        compress(data, 0, sink);
+    }
 
-        outputStream.flush();
+    /**
+     * Like {@link #compress(ByteBuffer, TokenSink)}, but only the bytes from
+     * start on are compressed. The bytes before start, usually the content of
+     * a dictionary, are only searched for matches.
+     */
+    public void compress(ByteBuffer data, int start, TokenSink sink) throws IOException {
+        // a window larger than the data would only cost table space
+        int windowSize = Math.min(level.getWindowSize(),
+                Math.max(MIN_WINDOW_SIZE, Integer.highestOneBit(Math.max(data.remaining() - 1, 1)) << 1));
+        compress(new ByteBufferWindow(data), sink, windowSize, start);
     }
 
-    public void decompress() throws IOException {
-        RingBuffer window = new RingBuffer(WINDOW_SIZE);
-        byte[] writeBuffer = new byte[WINDOW_SIZE];
-
-        boolean moreData = true;
-        while (moreData) {
-            int firstByte = inputStream.read();
-            if (firstByte == -1) {
-                moreData = false;
-                break;
+    /**
+     * @param start the index of the first byte to compress, the bytes before it
+     *              are only searched for matches
+     */
+    private void compress(ByteWindow buffer, TokenSink sink, int windowSize, int start) throws IOException {
+        SlidingWindow window = new SlidingWindow(buffer, windowSize, LOOKAHEAD_SIZE, sink.getMinMatchLength(),
+                level.getMaxChainDepth(), level.getNiceLength());
+
+        long nextMatch = Match.NONE; // match found by the lazy parser one position ahead
+
+        for (int lookaheadIndex = start; lookaheadIndex < buffer.getSize();) {
+            if (level.getParser() == CompressionLevel.Parser.OPTIMAL) {
+                lookaheadIndex = writeOptimalSegment(buffer, window, sink, lookaheadIndex, sink.isLastEntryMatch());
+                continue;
             }
-            byte entries = (byte) firstByte;
-            boolean isCompressed = entries < 0 ? true : false;
-            byte[] entry = new byte[isCompressed ? Match.SERIALIZED_BYTES : Byte.BYTES];
-            entries = (byte) Math.abs(entries);
-
-            for (int i = 0; i < entries; i++) {
-                int writeLength = 0;
-                int bytesRead = inputStream.read(entry);
-                if (bytesRead != entry.length) {
-                    throw new IOException("couldnt read entry");
-                }
-                if (isCompressed) {
-                    Match match = Match.deserialize(entry);
-                    int base = window.getSize() - match.getDistance();
-                    for (int j = 0; j < match.getLength(); j++) {
-                        writeBuffer[j] = window.get(base + j);
-                    }
-                    writeLength = match.getLength();
-                } else {
-                    writeBuffer[0] = entry[0];
-                    writeLength = 1;
-                }
-                if (window.getSize() + writeLength >= WINDOW_SIZE) {
-                    window.drop((window.getSize() + writeLength) - WINDOW_SIZE);
+
+            window.setDivider(lookaheadIndex);
+            long match = nextMatch != Match.NONE ? nextMatch : window.findMatch();
+            nextMatch = Match.NONE;
+
+            if (match != Match.NONE && level.getParser() == CompressionLevel.Parser.LAZY
+                    && Match.getLength(match) < level.getNiceLength()) {
+                window.setDivider(lookaheadIndex + 1);
+                long lazyMatch = window.findMatch();
+                if (Match.getLength(lazyMatch) > Match.getLength(match)) {
+                    nextMatch = lazyMatch;
+                    match = Match.NONE;
                 }
-                outputStream.write(writeBuffer, 0, writeLength);
-                window.addAll(writeBuffer, 0, writeLength);
+            }
+
+            if (match == Match.NONE) {
+                sink.writeByte(buffer.get(lookaheadIndex));
+                lookaheadIndex++;
+            } else {
+                lookaheadIndex += Match.getLength(match);
+                sink.writeMatch(match);
             }
         }
+        sink.finish();
 
-        outputStream.flush();
+        statistics.lzInputBytes += buffer.getSize() - start;
+        sink.addStatistics(statistics);
+        window.addStatistics(statistics);
+        window.release();
+    }
+
+    /**
+     * Copies the length bytes found distance bytes back to outputIndex. The
+     * source may reach back to windowStart, the copy may not reach outputEnd.
+     * 
+     * @return the index following the copied bytes
+     */
+    static int copyMatch(byte[] output, int outputIndex, int distance, int length, int windowStart, int outputEnd)
+            throws IOException {
+        int source = outputIndex - distance;
+        if (distance <= 0 || source < windowStart || length <= 0) {
+            throw new IOException("Invalid match (" + distance + ", " + length + ").");
+        }
+        if (outputIndex + length > outputEnd) {
+            throw new IOException("Decompressed data is longer than expected.");
+        }
+
+        if (distance >= length) {
+            System.arraycopy(output, source, output, outputIndex, length);
+        } else {
+            // the match repeats the last distance bytes, copy the pattern in doubling steps
+            int copied = 0;
+            while (copied < length) {
+                int count = Math.min(distance + copied, length - copied);
+                System.arraycopy(output, source, output, outputIndex + copied, count);
+                copied += count;
+            }
+        }
+        return outputIndex + length;
     }
 }
 
@@ -409,14 +736,25 @@ class VariableWidthEncoding {
     private static final int MAX_BYTES = (int) Math.ceil((double) Integer.SIZE / BITS_PER_BYTE);
 
     public static void encode(int value, OutputStream outputStream) throws IOException {
-        while (value != 0) {
+        do {
             int bits = value & READ_BITS_MASK;
             value >>>= BITS_PER_BYTE;
             if (value != 0) {
                 bits |= CONTINUE_BIT;
             }
             outputStream.write(bits);
+        } while (value != 0);
+    }
+
+    /**
+     * @return the number of bytes {@link #encode(int, OutputStream)} writes for value
+     */
+    public static int getEncodedSize(int value) {
+        int bytes = 1;
+        while ((value >>>= BITS_PER_BYTE) != 0) {
+            bytes++;
         }
+        return bytes;
     }
 
     public static int decode(InputStream inputStream) throws IOException {
@@ -436,62 +774,138 @@ class VariableWidthEncoding {
 
         return value;
     }
+
+    public static int decode(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        int bytesRead = 0;
+
+        while (bytesRead++ < MAX_BYTES && buffer.hasRemaining()) {
+            int b = buffer.get() & 0xFF;
+            int bits = b & READ_BITS_MASK;
+            value |= bits << shift;
+            shift += BITS_PER_BYTE;
+            if ((b & CONTINUE_BIT) == 0) {
+                break;
+            }
+        }
+
+        return value;
+    }
 }
 
-class BitSegment {
-    private final int size;
-    private final long bits;
+/**
+ * Writes bits most significant first into a byte array. Bits are collected in
+ * a 64-bit register and stored 32 at a time.
+ */
+class BitWriter {
+    private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
 
-    public BitSegment(int size, long bits) {
-        this.size = size;
-        this.bits = bits;
+    private byte[] buffer;
+    private int start;
+    private int position;
+    private long bits;
+    private int bitCount;
+
+    /**
+     * Starts writing at the beginning of buffer, which must be large enough to
+     * hold every bit that will be written.
+     */
+    public void reset(byte[] buffer) {
+        reset(buffer, 0);
     }
 
-    public int getSize() {
-        return size;
+    /**
+     * Starts writing at offset in buffer.
+     */
+    public void reset(byte[] buffer, int offset) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.start = offset;
+        this.bits = 0;
+        this.bitCount = 0;
     }
 
-    public long getBits() {
-        return bits;
+    /**
+     * Appends the lowest length bits of code, length must be at most 32.
+     */
+    public void write(int code, int length) {
+        bits = (bits << length) | (code & 0xFFFFFFFFL);
+        bitCount += length;
+        if (bitCount >= Integer.SIZE) {
+            bitCount -= Integer.SIZE;
+            INT_VIEW.set(buffer, position, (int) (bits >>> bitCount));
+            position += Integer.BYTES;
+        }
     }
 
-    @Override
-    public String toString() {
-        StringBuilder builder = new StringBuilder(size);
-        for (int i = size - 1; i >= 0; i--) {
-            builder.append((bits & (1 << i)) >>> i);
+    /**
+     * Writes out the remaining bits, padded with zeros to a full byte.
+     * 
+     * @return the number of bytes written since the last reset
+     */
+    public int finish() {
+        while (bitCount > 0) {
+            int shift = bitCount - Byte.SIZE;
+            buffer[position++] = (byte) (shift >= 0 ? bits >>> shift : bits << -shift);
+            bitCount = Math.max(shift, 0);
         }
-        return builder.toString();
+        return position - start;
     }
 }
 
-class BitBuffer {
-    private int size = 0;
-    private long bits = 0;
+/**
+ * Writes bits from the end of a byte array towards its start: each write goes
+ * in front of the bits written before it, so reading forwards, most
+ * significant bit first, gives them back in reverse order. For coders that encode their input backwards.
+ */
+class BackwardBitWriter {
+    private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
 
-    public void add(BitSegment bitSegment) {
-        long newBits = bitSegment.getBits();
-        int newBitsSize = bitSegment.getSize();
-        size += newBitsSize;
-        bits = (bits << newBitsSize) | newBits;
+    private byte[] buffer;
+    private int position;
+    private long bits; // right aligned, the most recent write highest
+    private int bitCount;
+
+    /**
+     * Starts writing backwards from end in buffer, which must have room
+     * before end for every bit that will be written.
+     */
+    public void reset(byte[] buffer, int end) {
+        this.buffer = buffer;
+        this.position = end;
+        this.bits = 0;
+        this.bitCount = 0;
     }
 
-    public int read() {
-        if (size < 8) {
-            return -1;
+    /**
+     * Puts the lowest length bits of value in front, length must be at most 32.
+     */
+    public void write(int value, int length) {
+        bits |= (value & ((1L << length) - 1)) << bitCount;
+        bitCount += length;
+        if (bitCount >= Integer.SIZE) {
+            position -= Integer.BYTES;
+            INT_VIEW.set(buffer, position, (int) bits);
+            bits >>>= Integer.SIZE;
+            bitCount -= Integer.SIZE;
         }
-        int shift = size - Byte.SIZE;
-        int b = (int) ((bits & (0xFF << shift)) >>> shift);
-        size -= Byte.SIZE;
-        return b;
     }
 
-    public int readFinal() {
-        if (size == 0) {
-            return -1;
+    /**
+     * Puts a 1 bit in front and fills the first byte up with zeros, so a
+     * reader finds the start by skipping to the bit after the first 1.
+     * 
+     * @return the offset in the buffer of the first byte written
+     */
+    public int finish() {
+        write(1, 1);
+        while (bitCount > 0) {
+            buffer[--position] = (byte) bits;
+            bits >>>= Byte.SIZE;
+            bitCount -= Byte.SIZE;
         }
-        int b = (int) (bits & ((1 << size) - 1)) << (Byte.SIZE - size);
-        return b;
+        return position;
     }
 }
 
@@ -500,298 +914,3962 @@ class Constants {
 }
 
 class HuffmanFrequencies {
-    int[] frequencies = new int[Constants.BYTE_MAX_POSSIBILITIES];
+    int[] frequencies;
 
-    private void setFrequency(byte c, int frequency) {
-        frequencies[c & 0xFF] = frequency;
+    public HuffmanFrequencies() {
+        this(Constants.BYTE_MAX_POSSIBILITIES);
+    }
+
+    public HuffmanFrequencies(int symbolCount) {
+        frequencies = new int[symbolCount];
     }
 
     public void increment(byte c) {
         frequencies[c & 0xFF]++;
     }
 
+    public void incrementSymbol(int symbol) {
+        frequencies[symbol]++;
+    }
+
+    public void clear() {
+        Arrays.fill(frequencies, 0);
+    }
+
     public int[] getFrequencies() {
         return frequencies.clone();
     }
 
-    public void serialize(OutputStream outputStream) throws IOException {
-        int nonZeroFrequencies = (int) Arrays.stream(frequencies).filter(x -> x != 0).count();
-        VariableWidthEncoding.encode(nonZeroFrequencies, outputStream);
-        for (int i = 0; i < frequencies.length; i++) {
-            if (frequencies[i] != 0) {
-                outputStream.write(i);
-                VariableWidthEncoding.encode(frequencies[i], outputStream);
-            }
+    /**
+     * @return the size in bits of the counted bytes if each were coded in
+     *         exactly -log2(p) bits, the lower bound for any symbol code
+     */
+    public double getEntropyBits() {
+        long total = 0;
+        for (int frequency : frequencies) {
+            total += frequency;
         }
-    }
-
-    public static HuffmanFrequencies deserialize(InputStream inputStream) throws IOException {
-        HuffmanFrequencies instance = new HuffmanFrequencies();
-        int frequencyCount =  VariableWidthEncoding.decode(inputStream);
-        for (int i = 0; i < frequencyCount; i++) {
-            byte c = (byte) inputStream.read();
-            int frequency = VariableWidthEncoding.decode(inputStream);
-            instance.setFrequency(c, frequency);
+        double bits = 0;
+        for (int frequency : frequencies) {
+            if (frequency > 0) {
+                bits += frequency * (Math.log((double) total / frequency) / Math.log(2));
+            }
         }
-        return instance;
+        return bits;
     }
 }
 
+/**
+ * Canonical Huffman code with a maximum code length of {@link #MAX_CODE_LENGTH}
+ * bits. Codes are assigned in order of length, then symbol, so the code
+ * lengths are all that is needed to rebuild the code. The alphabet is bytes
+ * unless the frequencies count more symbols.
+ */
 class HuffmanTree {
-    private final BitSegment[] encodeLut;
-    private final Node root;
-    private Node decodeNode;
+    public static final int MAX_CODE_LENGTH = 15;
+    private static final int NIBBLE_BITS = 4;
+    private static final int MAX_ZERO_RUN = 1 << NIBBLE_BITS;
+    private static final int DECODE_TABLE_BITS = 11;
+    static final int LENGTH_BITS = 8;
+    static final int LENGTH_MASK = (1 << LENGTH_BITS) - 1;
+    private static final int LONG_CODE = -1;
+
+    private final int[] codeLengths;
+    private final int[] codes;
+    // Decoding looks up the next DECODE_TABLE_BITS bits: entries hold (symbol << LENGTH_BITS) | code length,
+    // or LONG_CODE, in which case the code is found by length using the canonical order.
+    private int[] decodeTable;
+    private final int[] lengthCounts = new int[MAX_CODE_LENGTH + 1];
+    private final int[] firstCodes = new int[MAX_CODE_LENGTH + 1];
+    private final int[] firstSymbolIndexes = new int[MAX_CODE_LENGTH + 1];
+    private final int[] sortedSymbols;
 
     public HuffmanTree(HuffmanFrequencies frequencies) {
-        root = generateTree(frequencies.getFrequencies());
-        decodeNode = root;
-        encodeLut = createEncodeLut(root);
+        this(computeCodeLengths(frequencies.getFrequencies(), MAX_CODE_LENGTH));
     }
 
-    public BitSegment encode(byte c) {
-        return encodeLut[c & 0xFF];
+    private HuffmanTree(int[] codeLengths) {
+        this.codeLengths = codeLengths;
+        this.codes = new int[codeLengths.length];
+        this.sortedSymbols = new int[codeLengths.length];
+        assignCodes();
     }
 
-    public int decode(byte c, byte[] out) {
-        int bytes = 0;
-        for (int i = Byte.SIZE - 1; i >= 0; i--) {
-            int bit = ((c & 0xFF) >>> i) & 1;
-            decodeNode = decodeNode.getChild(bit);
-            if (decodeNode.isLeaf()) {
-                out[bytes++] = decodeNode.getValue();
-                decodeNode = root;
-            }
-        }
-        return bytes;
+    /**
+     * Code of each symbol, in the lowest bits. Shared, must not be modified.
+     */
+    public int[] getCodes() {
+        return codes;
     }
 
-    private BitSegment[] createEncodeLut(Node root) {
-        class Entry {
-            public final Node node;
-            public final BitSegment bits;
+    /**
+     * Code length of each symbol, 0 for unused symbols. Shared, must not be modified.
+     */
+    public int[] getCodeLengths() {
+        return codeLengths;
+    }
 
-            public Entry(Node node, BitSegment bits) {
-                this.node = node;
-                this.bits = bits;
-            }
+    /**
+     * Total number of bits needed to encode symbols with the given frequencies.
+     */
+    public long getEncodedBits(HuffmanFrequencies frequencies) {
+        int[] counts = frequencies.getFrequencies();
+        long bits = 0;
+        for (int i = 0; i < counts.length; i++) {
+            bits += (long) counts[i] * codeLengths[i];
         }
-        BitSegment[] encodeLut = new BitSegment[Constants.BYTE_MAX_POSSIBILITIES];
-        if (root == null) {
-            return encodeLut;
-        }
-
-        Stack<Entry> stack = new Stack<>();
+        return bits;
+    }
 
-        stack.push(new Entry(root, new BitSegment(0, 0)));
+    /**
+     * Writes the code lengths up to the last used symbol as 4-bit values, two
+     * per byte. A 0 is followed by the length of the run of unused symbols
+     * minus one.
+     */
+    public void serialize(OutputStream outputStream) throws IOException {
+        int symbolCount = codeLengths.length;
+        while (symbolCount > 0 && codeLengths[symbolCount - 1] == 0) {
+            symbolCount--;
+        }
+        VariableWidthEncoding.encode(symbolCount, outputStream);
 
-        while (stack.size() > 0) {
-            Entry entry = stack.pop();
-            Node node = entry.node;
-            if (node.isLeaf()) {
-                encodeLut[entry.node.value & 0xFF] = entry.bits;
+        int nibbleCount = 0;
+        byte[] nibbles = new byte[symbolCount * 2];
+        for (int i = 0; i < symbolCount;) {
+            if (codeLengths[i] != 0) {
+                nibbles[nibbleCount++] = (byte) codeLengths[i++];
                 continue;
             }
-
-            int newSize = entry.bits.getSize() + 1;
-            long oldBits = entry.bits.getBits();
-
-            Node left = node.getChild(0);
-            Node right = node.getChild(1);
-
-            BitSegment leftBits = new BitSegment(newSize, oldBits << 1);
-            BitSegment rightBits = new BitSegment(newSize, (oldBits << 1) | 1);
-
-            stack.push(new Entry(right, rightBits));
-            stack.push(new Entry(left, leftBits));
+            int run = 1;
+            while (run < MAX_ZERO_RUN && codeLengths[i + run] == 0) {
+                run++;
+            }
+            nibbles[nibbleCount++] = 0;
+            nibbles[nibbleCount++] = (byte) (run - 1);
+            i += run;
+        }
+        for (int i = 0; i < nibbleCount; i += 2) {
+            outputStream.write(nibbles[i] << NIBBLE_BITS | nibbles[i + 1]);
         }
-
-        return encodeLut;
     }
 
-    private Node generateTree(int[] frequencies) {
-        Comparator<Node> nodeComparator = Comparator.comparing(Node::getFrequency);
-        PriorityQueue<Node> nodes = new PriorityQueue<>(frequencies.length, nodeComparator);
-
-        for (int i = 0; i < frequencies.length; i++) {
-            if (frequencies[i] != 0) {
-                nodes.add(new Node(frequencies[i], (byte) i));
+    public static HuffmanTree deserialize(InputStream inputStream, int alphabetSize) throws IOException {
+        int symbolCount = VariableWidthEncoding.decode(inputStream);
+        if (symbolCount > alphabetSize) {
+            throw new IOException("Invalid code length table.");
+        }
+        int[] codeLengths = new int[alphabetSize];
+        int b = 0;
+        int nibbleIndex = 0;
+        boolean zeroRun = false;
+        for (int i = 0; i < symbolCount; nibbleIndex++) {
+            if ((nibbleIndex & 1) == 0 && (b = inputStream.read()) == -1) {
+                throw new IOException("Unexpected end of data.");
+            }
+            int nibble = (nibbleIndex & 1) == 0 ? b >>> NIBBLE_BITS : b & 0xF;
+            if (zeroRun) {
+                i += nibble + 1;
+                zeroRun = false;
+                if (i > symbolCount) {
+                    throw new IOException("Invalid code length table.");
+                }
+            } else if (nibble == 0) {
+                zeroRun = true;
+            } else {
+                codeLengths[i++] = nibble;
             }
         }
 
-        while (nodes.size() > 1) {
-            Node right = nodes.poll();
-            Node left = nodes.poll();
-            Node parent = new Node(left, right);
-            nodes.add(parent);
+        // the lengths must describe a prefix code
+        long kraftSum = 0;
+        for (int length : codeLengths) {
+            if (length != 0) {
+                kraftSum += 1L << (MAX_CODE_LENGTH - length);
+            }
         }
+        if (kraftSum > 1L << MAX_CODE_LENGTH) {
+            throw new IOException("Invalid code length table.");
+        }
+        return new HuffmanTree(codeLengths);
+    }
 
-        return nodes.poll();
+    /**
+     * Decodes the code at the start of bits, which are left aligned and must
+     * hold at least {@link #MAX_CODE_LENGTH} bits. The decode table must have
+     * been created, see {@link #prepareDecoding()}.
+     * 
+     * @return (symbol << LENGTH_BITS) | code length
+     */
+    int decodeEntry(long bits) throws IOException {
+        int entry = peekEntry(bits);
+        return entry != LONG_CODE ? entry : decodeLongCode(bits);
     }
 
-    static class Node {
-        public Node(Node left, Node right) {
-            this.left = left;
-            this.right = right;
-            if (left != null)
-                this.frequency += left.frequency;
-            if (right != null)
-                this.frequency += right.frequency;
+    /**
+     * Like {@link #decodeEntry(long)}, but returns a negative number rather
+     * than decoding a code longer than the decode table, and so never throws.
+     */
+    int peekEntry(long bits) {
+        return decodeTable[(int) (bits >>> (Long.SIZE - DECODE_TABLE_BITS))];
+    }
+
+    private int decodeLongCode(long bits) throws IOException {
+        for (int length = DECODE_TABLE_BITS + 1; length <= MAX_CODE_LENGTH; length++) {
+            int index = (int) (bits >>> (Long.SIZE - length)) - firstCodes[length];
+            if (index >= 0 && index < lengthCounts[length]) {
+                return (sortedSymbols[firstSymbolIndexes[length] + index] << LENGTH_BITS) | length;
+            }
         }
+        throw new IOException("Invalid Huffman code.");
+    }
 
-        public Node(int frequency, byte value) {
-            this.frequency = frequency;
-            this.value = value;
+    /**
+     * Computes Huffman code lengths without building a tree of objects: leaves
+     * sorted by frequency and internal nodes are merged from two queues, and
+     * lengths longer than maxLength are then shortened while keeping a valid
+     * prefix code.
+     */
+    private static int[] computeCodeLengths(int[] frequencies, int maxLength) {
+        int[] codeLengths = new int[frequencies.length];
+        int leafCount = 0;
+        for (int frequency : frequencies) {
+            if (frequency != 0) {
+                leafCount++;
+            }
+        }
+        if (leafCount == 0) {
+            return codeLengths;
         }
 
-        private Node left;
-        private Node right;
-        private int frequency;
-        private byte value;
+        // (frequency << 32) | symbol, sorted by frequency
+        long[] leaves = new long[leafCount];
+        for (int symbol = 0, i = 0; symbol < frequencies.length; symbol++) {
+            if (frequencies[symbol] != 0) {
+                leaves[i++] = (long) frequencies[symbol] << Integer.SIZE | symbol;
+            }
+        }
+        Arrays.sort(leaves);
+        if (leafCount == 1) {
+            codeLengths[(int) leaves[0]] = 1;
+            return codeLengths;
+        }
 
-        public boolean isLeaf() {
-            return left == null && right == null;
+        // nodes 0..leafCount-1 are the leaves, the following ones are created in order of weight
+        int nodeCount = 2 * leafCount - 1;
+        long[] weights = new long[nodeCount];
+        int[] parents = new int[nodeCount];
+        for (int i = 0; i < leafCount; i++) {
+            weights[i] = leaves[i] >>> Integer.SIZE;
+        }
+        int nextLeaf = 0;
+        int nextInternal = leafCount;
+        for (int node = leafCount; node < nodeCount; node++) {
+            for (int child = 0; child < 2; child++) {
+                int smallest;
+                if (nextInternal == node || (nextLeaf < leafCount && weights[nextLeaf] <= weights[nextInternal])) {
+                    smallest = nextLeaf++;
+                } else {
+                    smallest = nextInternal++;
+                }
+                weights[node] += weights[smallest];
+                parents[smallest] = node;
+            }
         }
 
-        public byte getValue() {
-            return value;
+        // parents always come after their children, so depths can be filled from the root down
+        int[] depths = new int[nodeCount];
+        for (int node = nodeCount - 2; node >= 0; node--) {
+            depths[node] = depths[parents[node]] + 1;
         }
 
-        public int getFrequency() {
-            return frequency;
+        long kraftSum = 0;
+        for (int i = 0; i < leafCount; i++) {
+            int length = Math.min(depths[i], maxLength);
+            codeLengths[(int) leaves[i]] = length;
+            kraftSum += 1L << (maxLength - length);
         }
 
-        public Node getChild(int pos) {
-            switch (pos) {
-            case 0:
-                return left;
-            case 1:
-                return right;
-            default:
-                throw new IllegalArgumentException("pos must be 0 or 1");
+        // clamping made the code overfull: lengthen the rarest codes that still can be
+        long capacity = 1L << maxLength;
+        while (kraftSum > capacity) {
+            for (int i = 0; i < leafCount; i++) {
+                int symbol = (int) leaves[i];
+                if (codeLengths[symbol] < maxLength) {
+                    codeLengths[symbol]++;
+                    kraftSum -= 1L << (maxLength - codeLengths[symbol]);
+                    break;
+                }
             }
         }
+        // and give any space left over back to the most frequent codes
+        for (int i = leafCount - 1; i >= 0; i--) {
+            int symbol = (int) leaves[i];
+            while (codeLengths[symbol] > 1 && kraftSum + (1L << (maxLength - codeLengths[symbol])) <= capacity) {
+                kraftSum += 1L << (maxLength - codeLengths[symbol]);
+                codeLengths[symbol]--;
+            }
+        }
+
+        return codeLengths;
+    }
+
+    private void assignCodes() {
+        for (int length : codeLengths) {
+            lengthCounts[length]++;
+        }
+        lengthCounts[0] = 0;
+
+        int code = 0;
+        int symbolIndex = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            code = (code + lengthCounts[length - 1]) << 1;
+            firstCodes[length] = code;
+            firstSymbolIndexes[length] = symbolIndex;
+            symbolIndex += lengthCounts[length];
+        }
+
+        int[] nextCodes = firstCodes.clone();
+        int[] nextSymbolIndexes = firstSymbolIndexes.clone();
+        for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+            int length = codeLengths[symbol];
+            if (length != 0) {
+                codes[symbol] = nextCodes[length]++;
+                sortedSymbols[nextSymbolIndexes[length]++] = symbol;
+            }
+        }
+    }
+
+    /**
+     * Creates the decode table unless it exists. Trees shared between threads
+     * must have it created before they are published.
+     */
+    void prepareDecoding() {
+        if (decodeTable == null) {
+            createDecodeTable();
+        }
+    }
+
+    void createDecodeTable() {
+        // indexes no code starts with fall through to the search by length, which rejects them
+        decodeTable = new int[1 << DECODE_TABLE_BITS];
+        Arrays.fill(decodeTable, LONG_CODE);
+        for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+            int length = codeLengths[symbol];
+            if (length == 0) {
+                continue;
+            }
+
+            if (length <= DECODE_TABLE_BITS) {
+                // every index starting with the code decodes to this symbol
+                int shift = DECODE_TABLE_BITS - length;
+                int first = codes[symbol] << shift;
+                Arrays.fill(decodeTable, first, first + (1 << shift), (symbol << LENGTH_BITS) | length);
+            } else {
+                decodeTable[codes[symbol] >>> (length - DECODE_TABLE_BITS)] = LONG_CODE;
+            }
+        }
+    }
+}
+
+/**
+ * Table-based asymmetric numeral system code (tANS, as in FSE). The symbol
+ * frequencies are scaled to counts that add up to {@link #TABLE_SIZE} and
+ * each symbol gets that many of the table's states, so a symbol costs close
+ * to -log2(p) bits, fractions of a bit included, where a Huffman code rounds
+ * to whole bits. The alphabet is bytes unless the frequencies count more
+ * symbols.
+ * 
+ * The state takes part of the bits of the following symbols, so symbols are
+ * encoded from last to first, starting from state {@link #TABLE_SIZE}, and
+ * the decoder reads the bits in reverse order of writing, see
+ * {@link BackwardBitWriter}. It starts from the encoder's last state, less
+ * TABLE_SIZE, and a complete decode ends at state 0.
+ */
+class TansTable {
+    static final int TABLE_LOG = 12;
+    static final int TABLE_SIZE = 1 << TABLE_LOG;
+    // decode table entries: (next state base << STATE_SHIFT) | (bits to read << SYMBOL_BITS) | symbol
+    static final int SYMBOL_BITS = 12;
+    static final int SYMBOL_MASK = (1 << SYMBOL_BITS) - 1;
+    static final int BIT_COUNT_MASK = 0xF;
+    static final int STATE_SHIFT = 16;
+
+    private final int[] counts;
+    // Encoding: the states of each symbol in table order, one after the other. A state gives up
+    // (state + deltaBitCounts[symbol]) >>> 16 bits and what is left, between count and 2 * count - 1,
+    // plus deltaStateIndexes[symbol] is the index of the next state, see the FSE reference implementation.
+    private int[] encodeStates;
+    private int[] deltaStateIndexes;
+    private int[] deltaBitCounts;
+    // Decoding: the entry of each state, see SYMBOL_BITS
+    private int[] decodeTable;
+
+    public TansTable(HuffmanFrequencies frequencies) {
+        this(normalize(frequencies.getFrequencies()));
+    }
+
+    private TansTable(int[] counts) {
+        this.counts = counts;
+    }
+
+    /**
+     * Scales frequencies to counts adding up to TABLE_SIZE, keeping every
+     * used symbol at least 1. Rounding errors are taken from or given to the
+     * largest counts, where they change the cost the least. Without any
+     * frequencies symbol 0 gets every state.
+     */
+    private static int[] normalize(int[] frequencies) {
+        long total = 0;
+        for (int frequency : frequencies) {
+            total += frequency;
+        }
+        int[] counts = new int[frequencies.length];
+        int sum = 0;
+        for (int symbol = 0; symbol < frequencies.length; symbol++) {
+            if (frequencies[symbol] != 0) {
+                counts[symbol] = (int) Math.max(1, ((long) frequencies[symbol] * TABLE_SIZE + total / 2) / total);
+                sum += counts[symbol];
+            }
+        }
+        while (sum != TABLE_SIZE) {
+            int largest = 0;
+            for (int symbol = 1; symbol < counts.length; symbol++) {
+                if (counts[symbol] > counts[largest]) {
+                    largest = symbol;
+                }
+            }
+            int step = sum > TABLE_SIZE ? -1 : 1;
+            counts[largest] += step;
+            sum += step;
+        }
+        return counts;
+    }
+
+    /**
+     * @return the size in bits of symbols with the given frequencies coded
+     *         with this table, close to exact
+     */
+    public double getEncodedBits(HuffmanFrequencies frequencies) {
+        int[] symbolFrequencies = frequencies.getFrequencies();
+        double bits = 0;
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            if (symbolFrequencies[symbol] != 0) {
+                bits += symbolFrequencies[symbol] * (TABLE_LOG - Math.log(counts[symbol]) / Math.log(2));
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * @return an upper bound of the size in bits of symbols with the given
+     *         frequencies coded with this table
+     */
+    public long getMaxEncodedBits(HuffmanFrequencies frequencies) {
+        int[] symbolFrequencies = frequencies.getFrequencies();
+        long bits = 0;
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            if (symbolFrequencies[symbol] != 0) {
+                bits += (long) symbolFrequencies[symbol] * (TABLE_LOG + 1 - log2(counts[symbol]));
+            }
+        }
+        return bits;
+    }
+
+    private static int log2(int value) {
+        return Integer.SIZE - 1 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Writes the counts up to the last used symbol as varints. A 0 is
+     * followed by the length of the run of unused symbols minus one.
+     */
+    public void serialize(OutputStream outputStream) throws IOException {
+        int symbolCount = counts.length;
+        while (symbolCount > 0 && counts[symbolCount - 1] == 0) {
+            symbolCount--;
+        }
+        VariableWidthEncoding.encode(symbolCount, outputStream);
+        for (int i = 0; i < symbolCount;) {
+            VariableWidthEncoding.encode(counts[i], outputStream);
+            if (counts[i] != 0) {
+                i++;
+                continue;
+            }
+            int run = 1;
+            while (counts[i + run] == 0) {
+                run++;
+            }
+            VariableWidthEncoding.encode(run - 1, outputStream);
+            i += run;
+        }
+    }
+
+    public static TansTable deserialize(InputStream inputStream, int alphabetSize) throws IOException {
+        int symbolCount = VariableWidthEncoding.decode(inputStream);
+        if (symbolCount < 0 || symbolCount > alphabetSize) {
+            throw new IOException("Invalid tANS table.");
+        }
+        int[] counts = new int[alphabetSize];
+        long sum = 0;
+        for (int i = 0; i < symbolCount;) {
+            int count = VariableWidthEncoding.decode(inputStream);
+            if (count < 0 || count > TABLE_SIZE) {
+                throw new IOException("Invalid tANS table.");
+            }
+            if (count != 0) {
+                counts[i++] = count;
+                sum += count;
+                continue;
+            }
+            int run = VariableWidthEncoding.decode(inputStream);
+            if (run < 0 || run >= symbolCount - i) {
+                throw new IOException("Invalid tANS table.");
+            }
+            i += run + 1;
+        }
+        if (sum != TABLE_SIZE) {
+            throw new IOException("Invalid tANS table.");
+        }
+        return new TansTable(counts);
+    }
+
+    /**
+     * @return the symbol of each state, symbols spread over the table so
+     *         the states of each are about evenly apart
+     */
+    private int[] spreadSymbols() {
+        int[] stateSymbols = new int[TABLE_SIZE];
+        int step = (TABLE_SIZE >>> 1) + (TABLE_SIZE >>> 3) + 3; // odd, so every state is visited once
+        int position = 0;
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            for (int i = 0; i < counts[symbol]; i++) {
+                stateSymbols[position] = symbol;
+                position = (position + step) & (TABLE_SIZE - 1);
+            }
+        }
+        return stateSymbols;
+    }
+
+    private void createEncodeTables() {
+        int[] stateSymbols = spreadSymbols();
+        int[] symbolStarts = new int[counts.length];
+        for (int symbol = 1; symbol < counts.length; symbol++) {
+            symbolStarts[symbol] = symbolStarts[symbol - 1] + counts[symbol - 1];
+        }
+        encodeStates = new int[TABLE_SIZE];
+        int[] next = symbolStarts.clone();
+        for (int state = 0; state < TABLE_SIZE; state++) {
+            encodeStates[next[stateSymbols[state]]++] = TABLE_SIZE + state;
+        }
+
+        deltaStateIndexes = new int[counts.length];
+        deltaBitCounts = new int[counts.length];
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            int count = counts[symbol];
+            deltaStateIndexes[symbol] = symbolStarts[symbol] - count;
+            if (count == 1) {
+                deltaBitCounts[symbol] = (TABLE_LOG << 16) - TABLE_SIZE;
+            } else if (count > 1) {
+                int maxBits = TABLE_LOG - log2(count - 1);
+                deltaBitCounts[symbol] = (maxBits << 16) - (count << maxBits);
+            }
+        }
+    }
+
+    private void createDecodeTable() {
+        int[] stateSymbols = spreadSymbols();
+        decodeTable = new int[TABLE_SIZE];
+        int[] next = counts.clone();
+        for (int state = 0; state < TABLE_SIZE; state++) {
+            int symbol = stateSymbols[state];
+            int x = next[symbol]++;
+            int bitCount = TABLE_LOG - log2(x);
+            decodeTable[state] = ((x << bitCount) - TABLE_SIZE) << STATE_SHIFT | bitCount << SYMBOL_BITS | symbol;
+        }
+    }
+
+    /**
+     * Creates the tables {@link #encodeSymbol} needs unless they exist.
+     */
+    void prepareEncoding() {
+        if (encodeStates == null) {
+            createEncodeTables();
+        }
+    }
+
+    /**
+     * Writes the low bits of state that the decoder reads after symbol and
+     * moves on to the state for the symbol before it.
+     * 
+     * @param state from TABLE_SIZE to 2 * TABLE_SIZE - 1
+     * @return the state for the symbol before symbol
+     */
+    int encodeSymbol(int state, int symbol, BackwardBitWriter writer) {
+        int bitCount = (state + deltaBitCounts[symbol]) >>> 16;
+        writer.write(state, bitCount);
+        return encodeStates[deltaStateIndexes[symbol] + (state >>> bitCount)];
+    }
+
+    /**
+     * Creates the table {@link #decodeEntry} reads unless it exists. Tables
+     * shared between threads must have it created before they are published.
+     */
+    void prepareDecoding() {
+        if (decodeTable == null) {
+            createDecodeTable();
+        }
+    }
+
+    /**
+     * @param state from 0 to TABLE_SIZE - 1
+     * @return the symbol of state and how to get the next state, see
+     *         {@link #SYMBOL_BITS}
+     */
+    int decodeEntry(int state) {
+        return decodeTable[state];
+    }
+}
+
+/**
+ * Splits a number into a symbol and extra bits the way DEFLATE codes
+ * distances: 0 to 3 have a symbol each, after that every power of two range
+ * is split into two symbols whose extra bits give the offset in the half.
+ */
+class ExtraBitsCode {
+    private static final int DIRECT_SYMBOLS = 4;
+
+    private ExtraBitsCode() {
+    }
+
+    public static int symbol(int value) {
+        if (value < DIRECT_SYMBOLS) {
+            return value;
+        }
+        int log = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(value);
+        return 2 * log + ((value >>> (log - 1)) & 1);
+    }
+
+    public static int extraBits(int symbol) {
+        return symbol < DIRECT_SYMBOLS ? 0 : (symbol >>> 1) - 1;
+    }
+
+    /**
+     * @return the smallest number coded with symbol
+     */
+    public static int base(int symbol) {
+        if (symbol < DIRECT_SYMBOLS) {
+            return symbol;
+        }
+        return (2 | (symbol & 1)) << extraBits(symbol);
+    }
+}
+
+/**
+ * Entropy codes the Lempel-Ziv tokens directly, in the style of DEFLATE:
+ * literals and match lengths share one alphabet, distances have their own,
+ * and lengths and distances are sent as a symbol plus extra bits, see
+ * {@link ExtraBitsCode}. Tokens are buffered into token blocks that each get
+ * whichever codes make them smallest: their own Huffman codes, their own tANS
+ * tables, see {@link TansTable}, or the Huffman codes of the dictionary:
+ * 
+ * <pre>
+ * varint uncompressed length << 3 | 4 if tANS | 2 if split into streams | 1 if the dictionary's codes are used
+ * Huffman: literal/length code lengths, distance code lengths, see HuffmanTree.serialize
+ * tANS: literal/length counts, distance counts, see TansTable.serialize
+ * varint token count
+ * if split: varint encoded length of each stream but the last
+ * varint encoded length
+ * bits
+ * </pre>
+ * 
+ * Blocks of {@link #MIN_SPLIT_TOKENS} tokens or more are split into
+ * {@link #STREAMS} streams of consecutive tokens, the last one taking the
+ * remainder, each coded as a bitstream of its own. The decoder reads the
+ * tokens of all streams in one loop, so reading a token does not wait for
+ * the code lengths of the one before, and then copies them out in order.
+ * 
+ * A tANS stream is written backwards, see {@link BackwardBitWriter}, with
+ * one state for the literal/length symbols and one for the distance symbols.
+ * It starts with both states, TABLE_LOG bits each, and the bits of each token
+ * follow in the same order as with Huffman codes. tANS costs a fraction of a
+ * bit per symbol where Huffman codes round to whole bits, which pays for its
+ * larger header on skewed distributions, such as the literals of text.
+ */
+class TokenEncoder implements TokenSink {
+    static final int MIN_MATCH_LENGTH = 3; // SlidingWindow hashes 4 bytes, so matches have at least 4
+    static final int LITERAL_SYMBOLS = Constants.BYTE_MAX_POSSIBILITIES;
+    static final int LENGTH_SYMBOLS = ExtraBitsCode.symbol(LempelZivAlgorithm.LOOKAHEAD_SIZE - MIN_MATCH_LENGTH - 1)
+            + 1;
+    static final int DISTANCE_SYMBOLS = ExtraBitsCode.symbol(LempelZivAlgorithm.MAX_WINDOW_SIZE - 1) + 1;
+    static final int TOKENS_PER_BLOCK = 65536;
+    static final int STREAMS = 4;
+    static final int MIN_SPLIT_TOKENS = 4096;
+    static final int DICTIONARY_CODES = 1; // flags of the block header
+    static final int SPLIT_STREAMS = 2;
+    static final int TANS_CODES = 4;
+    static final int FLAG_BITS = 3;
+    private static final int INITIAL_TOKENS = 1024; // grown up to TOKENS_PER_BLOCK, small inputs need few
+
+    // Approximate cost in bits, used by the optimal parser before the codes are known
+    static final int LITERAL_COST = 8;
+    private static final int LENGTH_SYMBOL_COST = 7;
+    private static final int DISTANCE_SYMBOL_COST = 6;
+
+    private final OutputStream outputStream;
+    private final Dictionary dictionary;
+    private long[] tokens = new long[INITIAL_TOKENS]; // literals are stored as matches of distance 0
+    private final HuffmanFrequencies literalFrequencies = new HuffmanFrequencies(LITERAL_SYMBOLS + LENGTH_SYMBOLS);
+    private final HuffmanFrequencies distanceFrequencies = new HuffmanFrequencies(DISTANCE_SYMBOLS);
+    private final BitWriter bitWriter = new BitWriter();
+    private final BackwardBitWriter backwardBitWriter = new BackwardBitWriter();
+    private final ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream();
+    private byte[] encodeBuffer = new byte[0];
+    private int tokenCount = 0;
+    private int blockLength = 0; // uncompressed bytes covered by the buffered tokens
+    private long extraBits = 0;
+    private boolean lastWasMatch = false;
+    private int forcedCodeFlags = -1; // see forceCodes, -1 while the smaller code is chosen
+    private int minSplitTokens = MIN_SPLIT_TOKENS;
+
+    private long literalCount;
+    private long matchCount;
+    private long matchLengthSum;
+    private long matchDistanceSum;
+    private long outputBytes;
+    private long headerBytes;
+    private double entropyBits;
+    private long nanos;
+
+    public TokenEncoder(OutputStream outputStream) {
+        this(outputStream, null);
+    }
+
+    /**
+     * @param dictionary the dictionary whose codes may be used, or null
+     */
+    public TokenEncoder(OutputStream outputStream, Dictionary dictionary) {
+        this.outputStream = outputStream;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Codes every block with tANS if tans, otherwise with Huffman codes of
+     * its own, instead of with whichever is smallest. For benchmarks.
+     */
+    void forceCodes(boolean tans) {
+        forcedCodeFlags = tans ? TANS_CODES : 0;
+    }
+
+    /**
+     * Splits every block of at least {@link #STREAMS} tokens if split, and no
+     * block otherwise, instead of the blocks of {@link #MIN_SPLIT_TOKENS}
+     * tokens. For benchmarks.
+     */
+    void forceSplitStreams(boolean split) {
+        minSplitTokens = split ? STREAMS : Integer.MAX_VALUE;
+    }
+
+    static int getLengthSymbol(int length) {
+        return LITERAL_SYMBOLS + ExtraBitsCode.symbol(length - MIN_MATCH_LENGTH - 1);
+    }
+
+    static int getDistanceSymbol(int distance) {
+        return ExtraBitsCode.symbol(distance - 1);
+    }
+
+    static int estimateMatchCost(int distance, int length) {
+        return LENGTH_SYMBOL_COST + ExtraBitsCode.extraBits(getLengthSymbol(length) - LITERAL_SYMBOLS)
+                + DISTANCE_SYMBOL_COST + ExtraBitsCode.extraBits(getDistanceSymbol(distance));
+    }
+
+    public int getMinMatchLength() {
+        return MIN_MATCH_LENGTH;
+    }
+
+    public int getLiteralCost() {
+        return LITERAL_COST;
+    }
+
+    public int getMatchCost(int distance, int length) {
+        return estimateMatchCost(distance, length);
+    }
+
+    public int getSwitchCost() {
+        return 0;
+    }
+
+    public boolean isLastEntryMatch() {
+        return lastWasMatch;
+    }
+
+    public void writeByte(byte b) throws IOException {
+        literalCount++;
+        lastWasMatch = false;
+        literalFrequencies.increment(b);
+        blockLength++;
+        addToken(Match.of(0, b & 0xFF));
+    }
+
+    public void writeMatch(long match) throws IOException {
+        int distance = Match.getDistance(match);
+        int length = Match.getLength(match);
+        matchCount++;
+        matchLengthSum += length;
+        matchDistanceSum += distance;
+        lastWasMatch = true;
+
+        int lengthSymbol = getLengthSymbol(length);
+        int distanceSymbol = getDistanceSymbol(distance);
+        literalFrequencies.incrementSymbol(lengthSymbol);
+        distanceFrequencies.incrementSymbol(distanceSymbol);
+        extraBits += ExtraBitsCode.extraBits(lengthSymbol - LITERAL_SYMBOLS) + ExtraBitsCode.extraBits(distanceSymbol);
+        blockLength += length;
+        addToken(match);
+    }
+
+    private void addToken(long token) throws IOException {
+        if (tokenCount == tokens.length) {
+            tokens = Arrays.copyOf(tokens, tokens.length * 2);
+        }
+        tokens[tokenCount++] = token;
+        if (tokenCount == TOKENS_PER_BLOCK) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        long start = System.nanoTime();
+        int streams = tokenCount >= minSplitTokens ? STREAMS : 1;
+        HuffmanTree literalTree = new HuffmanTree(literalFrequencies);
+        HuffmanTree distanceTree = new HuffmanTree(distanceFrequencies);
+        headerBuffer.reset();
+        literalTree.serialize(headerBuffer);
+        distanceTree.serialize(headerBuffer);
+        byte[] codes = headerBuffer.toByteArray();
+        int codeFlags = 0;
+        long huffmanBits = literalTree.getEncodedBits(literalFrequencies)
+                + distanceTree.getEncodedBits(distanceFrequencies);
+        double bits = huffmanBits + codes.length * Byte.SIZE;
+        if (dictionary != null && forcedCodeFlags < 0) {
+            long dictionaryBits = dictionary.getLiteralTree().getEncodedBits(literalFrequencies)
+                    + dictionary.getDistanceTree().getEncodedBits(distanceFrequencies);
+            if (dictionaryBits < bits) {
+                codeFlags = DICTIONARY_CODES;
+                codes = new byte[0];
+                literalTree = dictionary.getLiteralTree();
+                distanceTree = dictionary.getDistanceTree();
+                huffmanBits = dictionaryBits;
+                bits = dictionaryBits;
+            }
+        }
+        TansTable literalTable = new TansTable(literalFrequencies);
+        TansTable distanceTable = new TansTable(distanceFrequencies);
+        headerBuffer.reset();
+        literalTable.serialize(headerBuffer);
+        distanceTable.serialize(headerBuffer);
+        double tansBits = literalTable.getEncodedBits(literalFrequencies)
+                + distanceTable.getEncodedBits(distanceFrequencies) + headerBuffer.size() * Byte.SIZE
+                + streams * (2 * TansTable.TABLE_LOG + Byte.SIZE);
+        if (forcedCodeFlags < 0 ? tansBits < bits : forcedCodeFlags == TANS_CODES) {
+            codeFlags = TANS_CODES;
+            codes = headerBuffer.toByteArray();
+        }
+
+        int[] streamLengths = new int[streams];
+        int encodedOffset;
+        if (codeFlags == TANS_CODES) {
+            encodedOffset = encodeTans(literalTable, distanceTable, streamLengths);
+        } else {
+            encodedOffset = encodeHuffman(literalTree, distanceTree, huffmanBits + extraBits, streamLengths);
+        }
+
+        headerBuffer.reset();
+        VariableWidthEncoding.encode(blockLength << FLAG_BITS | (streams > 1 ? SPLIT_STREAMS : 0) | codeFlags,
+                headerBuffer);
+        headerBuffer.write(codes, 0, codes.length);
+        VariableWidthEncoding.encode(tokenCount, headerBuffer);
+        int encodedBytes = 0;
+        for (int stream = 0; stream < streams; stream++) {
+            if (stream < streams - 1) {
+                VariableWidthEncoding.encode(streamLengths[stream], headerBuffer);
+            }
+            encodedBytes += streamLengths[stream];
+        }
+        VariableWidthEncoding.encode(encodedBytes, headerBuffer);
+        headerBuffer.writeTo(outputStream);
+        outputStream.write(encodeBuffer, encodedOffset, encodedBytes);
+
+        outputBytes += headerBuffer.size() + encodedBytes;
+        headerBytes += headerBuffer.size();
+        entropyBits += literalFrequencies.getEntropyBits() + distanceFrequencies.getEntropyBits() + extraBits;
+
+        literalFrequencies.clear();
+        distanceFrequencies.clear();
+        tokenCount = 0;
+        blockLength = 0;
+        extraBits = 0;
+        nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Codes the streams of the buffered tokens one after the other into
+     * encodeBuffer.
+     * 
+     * @param bits the size in bits of the tokens coded with the trees
+     * @return the offset of the first stream in encodeBuffer
+     */
+    private int encodeHuffman(HuffmanTree literalTree, HuffmanTree distanceTree, long bits, int[] streamLengths) {
+        int streams = streamLengths.length;
+        // every stream but the last may end with a partial byte
+        int maxEncodedBytes = (int) ((bits + Byte.SIZE - 1) / Byte.SIZE) + streams - 1;
+        if (encodeBuffer.length < maxEncodedBytes) {
+            encodeBuffer = new byte[maxEncodedBytes];
+        }
+
+        int streamTokens = tokenCount / streams;
+        int encodedBytes = 0;
+        for (int stream = 0; stream < streams; stream++) {
+            int end = stream == streams - 1 ? tokenCount : (stream + 1) * streamTokens;
+            bitWriter.reset(encodeBuffer, encodedBytes);
+            writeTokens(stream * streamTokens, end, literalTree, distanceTree);
+            streamLengths[stream] = bitWriter.finish();
+            encodedBytes += streamLengths[stream];
+        }
+        return 0;
+    }
+
+    private void writeTokens(int start, int end, HuffmanTree literalTree, HuffmanTree distanceTree) {
+        int[] literalCodes = literalTree.getCodes();
+        int[] literalCodeLengths = literalTree.getCodeLengths();
+        int[] distanceCodes = distanceTree.getCodes();
+        int[] distanceCodeLengths = distanceTree.getCodeLengths();
+        for (int i = start; i < end; i++) {
+            int distance = Match.getDistance(tokens[i]);
+            int length = Match.getLength(tokens[i]);
+            if (distance == 0) {
+                bitWriter.write(literalCodes[length], literalCodeLengths[length]);
+                continue;
+            }
+
+            int lengthValue = length - MIN_MATCH_LENGTH - 1;
+            int lengthSymbol = ExtraBitsCode.symbol(lengthValue);
+            bitWriter.write(literalCodes[LITERAL_SYMBOLS + lengthSymbol],
+                    literalCodeLengths[LITERAL_SYMBOLS + lengthSymbol]);
+            bitWriter.write(lengthValue - ExtraBitsCode.base(lengthSymbol), ExtraBitsCode.extraBits(lengthSymbol));
+            int distanceValue = distance - 1;
+            int distanceSymbol = ExtraBitsCode.symbol(distanceValue);
+            bitWriter.write(distanceCodes[distanceSymbol], distanceCodeLengths[distanceSymbol]);
+            bitWriter.write(distanceValue - ExtraBitsCode.base(distanceSymbol),
+                    ExtraBitsCode.extraBits(distanceSymbol));
+        }
+    }
+
+    /**
+     * Codes the streams of the buffered tokens into the end of encodeBuffer,
+     * the last stream first so each ends where the one after it starts.
+     * 
+     * @return the offset of the first stream in encodeBuffer
+     */
+    private int encodeTans(TansTable literalTable, TansTable distanceTable, int[] streamLengths) {
+        int streams = streamLengths.length;
+        long maxBits = literalTable.getMaxEncodedBits(literalFrequencies)
+                + distanceTable.getMaxEncodedBits(distanceFrequencies) + extraBits
+                + streams * (2 * TansTable.TABLE_LOG + Byte.SIZE);
+        int maxEncodedBytes = (int) ((maxBits + Byte.SIZE - 1) / Byte.SIZE);
+        if (encodeBuffer.length < maxEncodedBytes) {
+            encodeBuffer = new byte[maxEncodedBytes];
+        }
+        literalTable.prepareEncoding();
+        distanceTable.prepareEncoding();
+
+        int streamTokens = tokenCount / streams;
+        int streamEnd = maxEncodedBytes;
+        for (int stream = streams - 1; stream >= 0; stream--) {
+            int end = stream == streams - 1 ? tokenCount : (stream + 1) * streamTokens;
+            backwardBitWriter.reset(encodeBuffer, streamEnd);
+            writeTokens(stream * streamTokens, end, literalTable, distanceTable);
+            int streamStart = backwardBitWriter.finish();
+            streamLengths[stream] = streamEnd - streamStart;
+            streamEnd = streamStart;
+        }
+        return streamEnd;
+    }
+
+    private void writeTokens(int start, int end, TansTable literalTable, TansTable distanceTable) {
+        int literalState = TansTable.TABLE_SIZE;
+        int distanceState = TansTable.TABLE_SIZE;
+        // from the last token to the first, and each token's bits back to front
+        for (int i = end - 1; i >= start; i--) {
+            int distance = Match.getDistance(tokens[i]);
+            int length = Match.getLength(tokens[i]);
+            if (distance == 0) {
+                literalState = literalTable.encodeSymbol(literalState, length, backwardBitWriter);
+                continue;
+            }
+
+            int distanceValue = distance - 1;
+            int distanceSymbol = ExtraBitsCode.symbol(distanceValue);
+            backwardBitWriter.write(distanceValue - ExtraBitsCode.base(distanceSymbol),
+                    ExtraBitsCode.extraBits(distanceSymbol));
+            distanceState = distanceTable.encodeSymbol(distanceState, distanceSymbol, backwardBitWriter);
+            int lengthValue = length - MIN_MATCH_LENGTH - 1;
+            int lengthSymbol = ExtraBitsCode.symbol(lengthValue);
+            backwardBitWriter.write(lengthValue - ExtraBitsCode.base(lengthSymbol),
+                    ExtraBitsCode.extraBits(lengthSymbol));
+            literalState = literalTable.encodeSymbol(literalState, LITERAL_SYMBOLS + lengthSymbol,
+                    backwardBitWriter);
+        }
+        backwardBitWriter.write(distanceState - TansTable.TABLE_SIZE, TansTable.TABLE_LOG);
+        backwardBitWriter.write(literalState - TansTable.TABLE_SIZE, TansTable.TABLE_LOG);
+    }
+
+    public void finish() throws IOException {
+        if (tokenCount > 0) {
+            writeBlock();
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Adds the token counts, and as Huffman stage figures the output size and the time spent coding.
+     */
+    public void addStatistics(Statistics statistics) {
+        statistics.literals += literalCount;
+        statistics.matches += matchCount;
+        statistics.matchLengthSum += matchLengthSum;
+        statistics.matchDistanceSum += matchDistanceSum;
+        statistics.huffmanOutputBytes += outputBytes;
+        statistics.huffmanHeaderBytes += headerBytes;
+        statistics.entropyBits += entropyBits;
+        statistics.huffmanNanos += nanos;
+    }
+}
+
+/**
+ * Decodes what {@link TokenEncoder} wrote.
+ */
+class TokenDecoder {
+    static final int LITERAL_LENGTH_SYMBOLS = TokenEncoder.LITERAL_SYMBOLS + TokenEncoder.LENGTH_SYMBOLS;
+    // For each literal/length symbol the byte or the smallest match length, and the extra bits
+    private static final int[] LITERAL_LENGTH_BASES = new int[LITERAL_LENGTH_SYMBOLS];
+    private static final int[] LITERAL_LENGTH_EXTRA_BITS = new int[LITERAL_LENGTH_SYMBOLS];
+    // For each distance symbol the smallest distance, and the extra bits
+    private static final int[] DISTANCE_BASES = new int[TokenEncoder.DISTANCE_SYMBOLS];
+    private static final int[] DISTANCE_EXTRA_BITS = new int[TokenEncoder.DISTANCE_SYMBOLS];
+    private static final VarHandle WORD_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.BIG_ENDIAN);
+
+    static {
+        for (int symbol = 0; symbol < LITERAL_LENGTH_SYMBOLS; symbol++) {
+            int lengthSymbol = symbol - TokenEncoder.LITERAL_SYMBOLS;
+            LITERAL_LENGTH_BASES[symbol] = lengthSymbol < 0 ? symbol
+                    : ExtraBitsCode.base(lengthSymbol) + TokenEncoder.MIN_MATCH_LENGTH + 1;
+            LITERAL_LENGTH_EXTRA_BITS[symbol] = lengthSymbol < 0 ? 0 : ExtraBitsCode.extraBits(lengthSymbol);
+        }
+        for (int symbol = 0; symbol < TokenEncoder.DISTANCE_SYMBOLS; symbol++) {
+            DISTANCE_BASES[symbol] = ExtraBitsCode.base(symbol) + 1;
+            DISTANCE_EXTRA_BITS[symbol] = ExtraBitsCode.extraBits(symbol);
+        }
+    }
+
+    private TokenDecoder() {
+    }
+
+    /**
+     * Decodes token blocks from data until output is full, counting the tokens
+     * in statistics.
+     */
+    public static void decode(byte[] data, byte[] output, Statistics statistics) throws IOException {
+        decode(data, output, 0, null, statistics);
+    }
+
+    /**
+     * Decodes token blocks from data into output from outputStart until output
+     * is full. The bytes before outputStart are the content of the dictionary,
+     * which may be null if no dictionary was used.
+     */
+    public static void decode(byte[] data, byte[] output, int outputStart, Dictionary dictionary,
+            Statistics statistics) throws IOException {
+        ByteArrayInputStream headerStream = new ByteArrayInputStream(data);
+        int outputIndex = outputStart;
+        long[] tokens = new long[0];
+        long literals = 0;
+        long matches = 0;
+        long matchLengthSum = 0;
+        long matchDistanceSum = 0;
+        while (outputIndex < output.length) {
+            int blockHeader = VariableWidthEncoding.decode(headerStream);
+            int blockLength = blockHeader >>> TokenEncoder.FLAG_BITS;
+            if (blockLength <= 0 || blockLength > output.length - outputIndex) {
+                throw new IOException("Invalid token block length: " + blockLength + " B.");
+            }
+            HuffmanTree literalTree = null;
+            HuffmanTree distanceTree = null;
+            TansTable literalTable = null;
+            TansTable distanceTable = null;
+            if ((blockHeader & TokenEncoder.DICTIONARY_CODES) != 0) {
+                if (dictionary == null) {
+                    throw new IOException("Data needs a dictionary.");
+                }
+                if ((blockHeader & TokenEncoder.TANS_CODES) != 0) {
+                    throw new IOException("Invalid token block flags.");
+                }
+                literalTree = dictionary.getLiteralTree();
+                distanceTree = dictionary.getDistanceTree();
+            } else if ((blockHeader & TokenEncoder.TANS_CODES) != 0) {
+                literalTable = TansTable.deserialize(headerStream, LITERAL_LENGTH_SYMBOLS);
+                distanceTable = TansTable.deserialize(headerStream, TokenEncoder.DISTANCE_SYMBOLS);
+            } else {
+                literalTree = HuffmanTree.deserialize(headerStream, LITERAL_LENGTH_SYMBOLS);
+                distanceTree = HuffmanTree.deserialize(headerStream, TokenEncoder.DISTANCE_SYMBOLS);
+            }
+            int tokenCount = VariableWidthEncoding.decode(headerStream);
+            if (tokenCount <= 0 || tokenCount > Math.min(blockLength, TokenEncoder.TOKENS_PER_BLOCK)) {
+                throw new IOException("Invalid token count: " + tokenCount + ".");
+            }
+            int streams = (blockHeader & TokenEncoder.SPLIT_STREAMS) != 0 ? TokenEncoder.STREAMS : 1;
+            int[] streamLengths = new int[streams];
+            long streamLengthSum = 0;
+            for (int stream = 0; stream < streams - 1; stream++) {
+                streamLengths[stream] = VariableWidthEncoding.decode(headerStream);
+                if (streamLengths[stream] < 0) {
+                    throw new IOException("Invalid stream lengths.");
+                }
+                streamLengthSum += streamLengths[stream];
+            }
+            int encodedLength = VariableWidthEncoding.decode(headerStream);
+            if (encodedLength < 0 || encodedLength > headerStream.available()) {
+                throw new IOException("Unexpected end of data.");
+            }
+            if (streamLengthSum > encodedLength) {
+                throw new IOException("Invalid stream lengths.");
+            }
+            streamLengths[streams - 1] = encodedLength - (int) streamLengthSum;
+            int encodedOffset = data.length - headerStream.available();
+            headerStream.skip(encodedLength);
+
+            if (tokens.length < tokenCount) {
+                tokens = new long[tokenCount];
+            }
+            readTokens(data, encodedOffset, streamLengths, literalTree, distanceTree, literalTable, distanceTable,
+                    tokens, tokenCount);
+
+            int blockEnd = outputIndex + blockLength;
+            for (int i = 0; i < tokenCount; i++) {
+                int distance = Match.getDistance(tokens[i]);
+                int length = Match.getLength(tokens[i]);
+                if (distance == 0) {
+                    if (outputIndex == blockEnd) {
+                        throw new IOException("Decompressed data is longer than expected.");
+                    }
+                    output[outputIndex++] = (byte) length;
+                    literals++;
+                    continue;
+                }
+
+                outputIndex = LempelZivAlgorithm.copyMatch(output, outputIndex, distance, length, 0, blockEnd);
+                matches++;
+                matchLengthSum += length;
+                matchDistanceSum += distance;
+            }
+            if (outputIndex != blockEnd) {
+                throw new IOException("Decompressed data is shorter than expected.");
+            }
+        }
+        statistics.literals += literals;
+        statistics.matches += matches;
+        statistics.matchLengthSum += matchLengthSum;
+        statistics.matchDistanceSum += matchDistanceSum;
+    }
+
+    /**
+     * Reads tokenCount tokens from the streams of a block into tokens, the
+     * tokens of each stream after those of the one before. The literal and
+     * distance codes are either both trees or both tables.
+     */
+    private static void readTokens(byte[] data, int offset, int[] streamLengths, HuffmanTree literalTree,
+            HuffmanTree distanceTree, TansTable literalTable, TansTable distanceTable, long[] tokens, int tokenCount)
+            throws IOException {
+        if (literalTable != null) {
+            literalTable.prepareDecoding();
+            distanceTable.prepareDecoding();
+        } else {
+            literalTree.prepareDecoding();
+            distanceTree.prepareDecoding();
+        }
+
+        if (streamLengths.length == 1) {
+            TokenStream reader = new TokenStream(data, offset, streamLengths[0], literalTree, distanceTree,
+                    literalTable, distanceTable);
+            for (int i = 0; i < tokenCount; i++) {
+                tokens[i] = reader.next();
+            }
+            reader.finish();
+            return;
+        }
+
+        // the tokens of the streams do not depend on each other, so their lookups overlap
+        int offset1 = offset + streamLengths[0];
+        int offset2 = offset1 + streamLengths[1];
+        int offset3 = offset2 + streamLengths[2];
+        TokenStream reader0 = new TokenStream(data, offset, streamLengths[0], literalTree, distanceTree,
+                literalTable, distanceTable);
+        TokenStream reader1 = new TokenStream(data, offset1, streamLengths[1], literalTree, distanceTree,
+                literalTable, distanceTable);
+        TokenStream reader2 = new TokenStream(data, offset2, streamLengths[2], literalTree, distanceTree,
+                literalTable, distanceTable);
+        TokenStream reader3 = new TokenStream(data, offset3, streamLengths[3], literalTree, distanceTree,
+                literalTable, distanceTable);
+        int streamTokens = tokenCount / TokenEncoder.STREAMS;
+        // a loop per code, so the code is not checked for every token
+        if (literalTable != null) {
+            for (int i = 0; i < streamTokens; i++) {
+                tokens[i] = reader0.nextTans();
+                tokens[streamTokens + i] = reader1.nextTans();
+                tokens[2 * streamTokens + i] = reader2.nextTans();
+                tokens[3 * streamTokens + i] = reader3.nextTans();
+            }
+        } else {
+            for (int i = 0; i < streamTokens; i++) {
+                tokens[i] = reader0.nextHuffman();
+                tokens[streamTokens + i] = reader1.nextHuffman();
+                tokens[2 * streamTokens + i] = reader2.nextHuffman();
+                tokens[3 * streamTokens + i] = reader3.nextHuffman();
+            }
+        }
+        for (int i = TokenEncoder.STREAMS * streamTokens; i < tokenCount; i++) {
+            tokens[i] = reader3.next();
+        }
+        reader0.finish();
+        reader1.finish();
+        reader2.finish();
+        reader3.finish();
+    }
+
+    /**
+     * Reads the tokens of one stream, in the form {@link TokenEncoder} buffers
+     * them: a match, or a literal as a match of distance 0 whose length is the
+     * byte. It refills a word at a time while a word is left. Instances stay
+     * local to {@link #readTokens}, so the JIT can keep their fields in
+     * registers.
+     */
+    private static final class TokenStream {
+        private final byte[] data;
+        private final int start;
+        private final int end;
+        private final int limit; // last position a word can be read from
+        private final HuffmanTree literalTree;
+        private final HuffmanTree distanceTree;
+        private final TansTable literalTable;
+        private final TansTable distanceTable;
+        private int position;
+        private long bits = 0; // left aligned
+        private int bitCount = 0;
+        private int literalState;
+        private int distanceState;
+
+        /**
+         * Either both trees or both tables are null.
+         */
+        TokenStream(byte[] data, int offset, int length, HuffmanTree literalTree, HuffmanTree distanceTree,
+                TansTable literalTable, TansTable distanceTable) throws IOException {
+            this.data = data;
+            this.start = offset;
+            this.position = offset;
+            this.end = offset + length;
+            this.limit = end - Long.BYTES;
+            this.literalTree = literalTree;
+            this.distanceTree = distanceTree;
+            this.literalTable = literalTable;
+            this.distanceTable = distanceTable;
+            if (literalTable != null) {
+                // the start marker of BackwardBitWriter.finish, then the states
+                refill();
+                int zeros = Long.numberOfLeadingZeros(bits);
+                if (zeros >= Byte.SIZE) {
+                    throw new IOException("Invalid bitstream start.");
+                }
+                read(zeros + 1);
+                literalState = read(TansTable.TABLE_LOG);
+                distanceState = read(TansTable.TABLE_LOG);
+            }
+        }
+
+        private void refill() {
+            if (position <= limit) {
+                bits |= (long) WORD_VIEW.get(data, position) >>> bitCount;
+                position += (Long.SIZE - 1 - bitCount) >>> 3;
+                bitCount |= Long.SIZE - Byte.SIZE;
+                return;
+            }
+            // past the end of the stream come zero bits, finish tells
+            while (bitCount <= Long.SIZE - Byte.SIZE) {
+                long b = position < end ? data[position] & 0xFF : 0;
+                bits |= b << (Long.SIZE - Byte.SIZE - bitCount);
+                position++;
+                bitCount += Byte.SIZE;
+            }
+        }
+
+        /**
+         * @param count at most 32, or 0 to read nothing
+         */
+        private int read(int count) {
+            // shifting by one first makes a count of 0 read nothing
+            int value = (int) (bits >>> 1 >>> (Long.SIZE - 1 - count));
+            bits <<= count;
+            bitCount -= count;
+            return value;
+        }
+
+        long next() throws IOException {
+            return literalTable != null ? nextTans() : nextHuffman();
+        }
+
+        long nextHuffman() throws IOException {
+            refill();
+            int entry = literalTree.decodeEntry(bits);
+            int symbol = entry >>> HuffmanTree.LENGTH_BITS;
+            read(entry & HuffmanTree.LENGTH_MASK);
+            int length = LITERAL_LENGTH_BASES[symbol] + read(LITERAL_LENGTH_EXTRA_BITS[symbol]);
+
+            // A literal has no distance. Rather than branching, which would mispredict for about
+            // every other token, the distance is looked up anyway and masked to nothing.
+            int matchMask = (TokenEncoder.LITERAL_SYMBOLS - 1 - symbol) >> (Integer.SIZE - 1);
+            refill();
+            entry = distanceTree.peekEntry(bits);
+            if ((entry & matchMask) < 0) {
+                entry = distanceTree.decodeEntry(bits);
+            }
+            int distanceSymbol = (entry >>> HuffmanTree.LENGTH_BITS) & matchMask;
+            read(entry & HuffmanTree.LENGTH_MASK & matchMask);
+            int distance = (DISTANCE_BASES[distanceSymbol] + read(DISTANCE_EXTRA_BITS[distanceSymbol] & matchMask))
+                    & matchMask;
+            return Match.of(distance, length);
+        }
+
+        long nextTans() {
+            refill();
+            int entry = literalTable.decodeEntry(literalState);
+            int symbol = entry & TansTable.SYMBOL_MASK;
+            literalState = (entry >>> TansTable.STATE_SHIFT)
+                    + read((entry >>> TansTable.SYMBOL_BITS) & TansTable.BIT_COUNT_MASK);
+            int length = LITERAL_LENGTH_BASES[symbol] + read(LITERAL_LENGTH_EXTRA_BITS[symbol]);
+
+            // masked for literals as in nextHuffman, including the distance state staying put
+            int matchMask = (TokenEncoder.LITERAL_SYMBOLS - 1 - symbol) >> (Integer.SIZE - 1);
+            refill();
+            entry = distanceTable.decodeEntry(distanceState);
+            int distanceSymbol = entry & TansTable.SYMBOL_MASK & matchMask;
+            int state = (entry >>> TansTable.STATE_SHIFT)
+                    + read((entry >>> TansTable.SYMBOL_BITS) & TansTable.BIT_COUNT_MASK & matchMask);
+            distanceState ^= (distanceState ^ state) & matchMask;
+            int distance = (DISTANCE_BASES[distanceSymbol] + read(DISTANCE_EXTRA_BITS[distanceSymbol] & matchMask))
+                    & matchMask;
+            return Match.of(distance, length);
+        }
+
+        /**
+         * Checks that the tokens read were all in the stream and, with tANS,
+         * that the states ended where the encoder started.
+         */
+        void finish() throws IOException {
+            if ((long) (position - start) * Byte.SIZE - bitCount > (long) (end - start) * Byte.SIZE) {
+                throw new IOException("Unexpected end of data.");
+            }
+            if (literalTable != null && (literalState | distanceState) != 0) {
+                throw new IOException("Invalid tANS data.");
+            }
+        }
+    }
+}
+
+/**
+ * Content and codes shared by the compressor and decompressor of small
+ * payloads. The content is searched for matches as if it preceded every
+ * block, and token blocks may use the codes instead of sending their own.
+ * Stored as:
+ * 
+ * <pre>
+ * magic "XCZD"
+ * varint content length, content
+ * literal/length code lengths, distance code lengths, see HuffmanTree.serialize
+ * </pre>
+ * 
+ * The codes cover every symbol, so any block can be coded with them.
+ * Containers record the id of the dictionary they were compressed with.
+ */
+class Dictionary {
+    static final byte[] MAGIC = { 'X', 'C', 'Z', 'D' };
+    static final int MAX_CONTENT_SIZE = LempelZivAlgorithm.MAX_WINDOW_SIZE;
+
+    private final byte[] content;
+    private final HuffmanTree literalTree;
+    private final HuffmanTree distanceTree;
+    private final int id;
+
+    public Dictionary(byte[] content, HuffmanTree literalTree, HuffmanTree distanceTree) throws IOException {
+        if (content.length > MAX_CONTENT_SIZE) {
+            throw new IOException("Dictionary too large: " + content.length + " B.");
+        }
+        checkCodes(literalTree, TokenDecoder.LITERAL_LENGTH_SYMBOLS);
+        checkCodes(distanceTree, TokenEncoder.DISTANCE_SYMBOLS);
+        this.content = content;
+        this.literalTree = literalTree;
+        this.distanceTree = distanceTree;
+        // the trees are shared by all threads, so their tables are built before they are published
+        literalTree.createDecodeTable();
+        distanceTree.createDecodeTable();
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        write(serialized);
+        CRC32 crc = new CRC32();
+        crc.update(serialized.toByteArray());
+        // 0 stands for no dictionary
+        this.id = Math.max((int) crc.getValue() & Integer.MAX_VALUE, 1);
+    }
+
+    private static void checkCodes(HuffmanTree tree, int alphabetSize) throws IOException {
+        int[] codeLengths = tree.getCodeLengths();
+        if (codeLengths.length != alphabetSize) {
+            throw new IOException("Invalid dictionary code length table.");
+        }
+        for (int length : codeLengths) {
+            if (length == 0) {
+                throw new IOException("Dictionary codes do not cover every symbol.");
+            }
+        }
+    }
+
+    public static Dictionary read(InputStream inputStream) throws IOException {
+        byte[] magic = inputStream.readNBytes(MAGIC.length);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not an XCompress dictionary.");
+        }
+        int length = VariableWidthEncoding.decode(inputStream);
+        if (length > MAX_CONTENT_SIZE) {
+            throw new IOException("Dictionary too large: " + length + " B.");
+        }
+        byte[] content = inputStream.readNBytes(length);
+        if (content.length != length) {
+            throw new IOException("Unexpected end of data.");
+        }
+        HuffmanTree literalTree = HuffmanTree.deserialize(inputStream, TokenDecoder.LITERAL_LENGTH_SYMBOLS);
+        HuffmanTree distanceTree = HuffmanTree.deserialize(inputStream, TokenEncoder.DISTANCE_SYMBOLS);
+        return new Dictionary(content, literalTree, distanceTree);
+    }
+
+    public void write(OutputStream outputStream) throws IOException {
+        outputStream.write(MAGIC);
+        VariableWidthEncoding.encode(content.length, outputStream);
+        outputStream.write(content);
+        literalTree.serialize(outputStream);
+        distanceTree.serialize(outputStream);
+    }
+
+    /**
+     * Shared, must not be modified.
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    public HuffmanTree getLiteralTree() {
+        return literalTree;
+    }
+
+    public HuffmanTree getDistanceTree() {
+        return distanceTree;
+    }
+
+    /**
+     * @return a hash of the dictionary, never 0
+     */
+    public int getId() {
+        return id;
+    }
+}
+
+/**
+ * Builds a dictionary from sample payloads. The content is made of the
+ * segments of the samples whose strings occur in the most other samples: each
+ * 8 byte string counts the samples it occurs in, a segment scores the sum of
+ * the counts of its strings found in at least two samples, and segments are
+ * taken best first. Once a segment is taken its strings count no more, so the
+ * next segments add something new. The best segments go last, where matches
+ * are shortest. The codes are then those of the samples compressed with that
+ * content, with every symbol counted once more so that all of them get a code.
+ */
+class DictionaryTrainer {
+    private static final int STRING_BYTES = 8;
+    private static final int SEGMENT_SIZE = 128;
+    private static final int HASH_BITS = 20;
+    private static final int MIN_SAMPLES = 2;
+
+    private final CompressionLevel level;
+    private final int maxSize;
+    private final int[] sampleCounts = new int[1 << HASH_BITS]; // hash -> number of samples holding the string
+    private final int[] marks = new int[1 << HASH_BITS]; // hash -> last sample or segment that counted it
+    private int mark = 0;
+
+    /**
+     * @param maxSize the maximum content size, at most the window size of level
+     *                is of use
+     */
+    public DictionaryTrainer(CompressionLevel level, int maxSize) {
+        this.level = level;
+        this.maxSize = Math.min(maxSize, Dictionary.MAX_CONTENT_SIZE);
+    }
+
+    private static int hash(byte[] data, int index) {
+        long value = 0;
+        for (int i = 0; i < STRING_BYTES; i++) {
+            value = value << Byte.SIZE | (data[index + i] & 0xFF);
+        }
+        return (int) ((value * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - HASH_BITS));
+    }
+
+    private static class Segment {
+        public final byte[] sample;
+        public final int start;
+        public final int end;
+        public long score;
+
+        public Segment(byte[] sample, int start, int end) {
+            this.sample = sample;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * @return the sum of the sample counts of the distinct strings of the
+     *         segment that are in enough samples
+     */
+    private long score(Segment segment) {
+        mark++;
+        long score = 0;
+        for (int i = segment.start; i + STRING_BYTES <= segment.end; i++) {
+            int h = hash(segment.sample, i);
+            if (marks[h] != mark) {
+                marks[h] = mark;
+                if (sampleCounts[h] >= MIN_SAMPLES) {
+                    score += sampleCounts[h];
+                }
+            }
+        }
+        return score;
+    }
+
+    private byte[] selectContent(List<byte[]> samples) {
+        for (byte[] sample : samples) {
+            mark++;
+            for (int i = 0; i + STRING_BYTES <= sample.length; i++) {
+                int h = hash(sample, i);
+                if (marks[h] != mark) {
+                    marks[h] = mark;
+                    sampleCounts[h]++;
+                }
+            }
+        }
+
+        PriorityQueue<Segment> queue = new PriorityQueue<>((a, b) -> Long.compare(b.score, a.score));
+        for (byte[] sample : samples) {
+            for (int start = 0; start < sample.length; start += SEGMENT_SIZE) {
+                Segment segment = new Segment(sample, start, Math.min(start + SEGMENT_SIZE, sample.length));
+                segment.score = score(segment);
+                if (segment.score > 0) {
+                    queue.add(segment);
+                }
+            }
+        }
+
+        // scores only go down as segments are taken, so a segment whose updated score still beats the
+        // stale score of the next one is the best
+        ArrayList<Segment> selected = new ArrayList<>();
+        int size = 0;
+        while (size < maxSize && !queue.isEmpty()) {
+            Segment segment = queue.poll();
+            long score = score(segment);
+            if (score == 0) {
+                continue;
+            }
+            if (!queue.isEmpty() && score < queue.peek().score) {
+                segment.score = score;
+                queue.add(segment);
+                continue;
+            }
+            selected.add(segment);
+            size += segment.end - segment.start;
+            for (int i = segment.start; i + STRING_BYTES <= segment.end; i++) {
+                sampleCounts[hash(segment.sample, i)] = 0;
+            }
+        }
+
+        byte[] content = new byte[Math.min(size, maxSize)];
+        int index = content.length;
+        for (Segment segment : selected) {
+            int length = Math.min(segment.end - segment.start, index);
+            index -= length;
+            System.arraycopy(segment.sample, segment.end - length, content, index, length);
+        }
+        return content;
+    }
+
+    /**
+     * Counts the symbols the token encoder would code, using its cost estimates.
+     */
+    private static class SymbolCounter implements TokenSink {
+        public final HuffmanFrequencies literalFrequencies = new HuffmanFrequencies(
+                TokenDecoder.LITERAL_LENGTH_SYMBOLS);
+        public final HuffmanFrequencies distanceFrequencies = new HuffmanFrequencies(TokenEncoder.DISTANCE_SYMBOLS);
+        private boolean lastWasMatch = false;
+
+        public int getMinMatchLength() {
+            return TokenEncoder.MIN_MATCH_LENGTH;
+        }
+
+        public int getLiteralCost() {
+            return TokenEncoder.LITERAL_COST;
+        }
+
+        public int getMatchCost(int distance, int length) {
+            return TokenEncoder.estimateMatchCost(distance, length);
+        }
+
+        public int getSwitchCost() {
+            return 0;
+        }
+
+        public boolean isLastEntryMatch() {
+            return lastWasMatch;
+        }
+
+        public void writeByte(byte b) {
+            literalFrequencies.increment(b);
+            lastWasMatch = false;
+        }
+
+        public void writeMatch(long match) {
+            literalFrequencies.incrementSymbol(TokenEncoder.getLengthSymbol(Match.getLength(match)));
+            distanceFrequencies.incrementSymbol(TokenEncoder.getDistanceSymbol(Match.getDistance(match)));
+            lastWasMatch = true;
+        }
+
+        public void finish() {
+        }
+
+        public void addStatistics(Statistics statistics) {
+        }
+    }
+
+    public Dictionary train(List<byte[]> samples) throws IOException {
+        byte[] content = selectContent(samples);
+
+        SymbolCounter counter = new SymbolCounter();
+        for (int symbol = 0; symbol < TokenDecoder.LITERAL_LENGTH_SYMBOLS; symbol++) {
+            counter.literalFrequencies.incrementSymbol(symbol);
+        }
+        for (int symbol = 0; symbol < TokenEncoder.DISTANCE_SYMBOLS; symbol++) {
+            counter.distanceFrequencies.incrementSymbol(symbol);
+        }
+        for (byte[] sample : samples) {
+            byte[] data = Arrays.copyOf(content, content.length + sample.length);
+            System.arraycopy(sample, 0, data, content.length, sample.length);
+            new LempelZivAlgorithm(level).compress(ByteBuffer.wrap(data), content.length, counter);
+        }
+        return new Dictionary(content, new HuffmanTree(counter.literalFrequencies),
+                new HuffmanTree(counter.distanceFrequencies));
+    }
+}
+
+/**
+ * Counters of the work done by the two compression stages, the Lempel-Ziv
+ * parser producing tokens and the Huffman coding of those tokens. Sizes are
+ * named in the direction of compression also when decompressing, e.g.
+ * lzInputBytes is always the uncompressed size. Decoding runs both stages in
+ * one loop, so all of its time counts as Huffman time. Each block gets its
+ * own instance, and the instances can be added up into totals.
+ */
+class Statistics {
+    public long blocks;
+    public long storedBlocks;
+
+    public long lzInputBytes;
+    public long lzNanos;
+    public long literals;
+    public long matches;
+    public long matchLengthSum;
+    public long matchDistanceSum;
+    public long matchFinderSearches;
+    public long matchFinderProbes;
+
+    public long huffmanOutputBytes;
+    public long huffmanHeaderBytes;
+    public long huffmanNanos;
+    public double entropyBits;
+
+    public void add(Statistics other) {
+        blocks += other.blocks;
+        storedBlocks += other.storedBlocks;
+        lzInputBytes += other.lzInputBytes;
+        lzNanos += other.lzNanos;
+        literals += other.literals;
+        matches += other.matches;
+        matchLengthSum += other.matchLengthSum;
+        matchDistanceSum += other.matchDistanceSum;
+        matchFinderSearches += other.matchFinderSearches;
+        matchFinderProbes += other.matchFinderProbes;
+        huffmanOutputBytes += other.huffmanOutputBytes;
+        huffmanHeaderBytes += other.huffmanHeaderBytes;
+        huffmanNanos += other.huffmanNanos;
+        entropyBits += other.entropyBits;
+    }
+
+    private static double ratio(double value, long total) {
+        return total == 0 ? 0 : value / total;
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes * 1e3 / nanos;
+    }
+
+    public void printBlock(PrintStream out, long blockIndex) {
+        out.printf("block %d: %d B -> %d B, lz %.3f s, huffman %.3f s", blockIndex, lzInputBytes, huffmanOutputBytes,
+                lzNanos / 1e9, huffmanNanos / 1e9);
+        if (storedBlocks > 0) {
+            out.print(", stored");
+        }
+        if (entropyBits > 0) {
+            out.printf(", header %d B, entropy %.2f bits/token", huffmanHeaderBytes,
+                    ratio(entropyBits, literals + matches));
+        }
+        out.println();
+    }
+
+    public void print(PrintStream out) {
+        out.printf("%d blocks, %d stored: %d B -> %d B (%.3f)%n", blocks, storedBlocks, lzInputBytes,
+                huffmanOutputBytes, ratio(huffmanOutputBytes, lzInputBytes));
+        long tokens = literals + matches;
+        out.printf("lz stage: %d B <-> %d tokens in %.3f s (%.1f MB/s)%n", lzInputBytes, tokens, lzNanos / 1e9,
+                megabytesPerSecond(lzInputBytes, lzNanos));
+        if (tokens > 0) {
+            out.printf("  %d literals, %d matches, average length %.1f, average distance %.1f%n", literals, matches,
+                    ratio(matchLengthSum, matches), ratio(matchDistanceSum, matches));
+        }
+        if (matchFinderSearches > 0) {
+            out.printf("  match finder: %.2f probes per position searched%n",
+                    ratio(matchFinderProbes, matchFinderSearches));
+        }
+        out.printf("huffman stage: %d tokens <-> %d B in %.3f s (%.1f MB/s)%n", tokens, huffmanOutputBytes,
+                huffmanNanos / 1e9, megabytesPerSecond(lzInputBytes, huffmanNanos));
+        if (entropyBits > 0) {
+            out.printf("  entropy %.3f bits/token, coded %.3f bits/token, headers %d B%n", ratio(entropyBits, tokens),
+                    ratio((huffmanOutputBytes - huffmanHeaderBytes) * 8.0, tokens), huffmanHeaderBytes);
+        }
+    }
+}
+
+/**
+ * Receives the statistics of each block in block order, on the thread writing
+ * the output.
+ */
+interface StatisticsListener {
+    StatisticsListener NONE = (blockIndex, statistics) -> {
+    };
+
+    void blockFinished(long blockIndex, Statistics statistics);
+}
+
+/**
+ * Guesses from a small sample whether a block is worth compressing. Runs of
+ * bytes spread over the block are checked for their order-0 entropy and for
+ * 4 byte sequences seen earlier in the sample. Data that is already
+ * compressed or encrypted has close to 8 bits of entropy per byte and almost
+ * no repeats, so neither the match finder nor a Huffman code would gain
+ * anything.
+ */
+class CompressibilitySampler {
+    private static final int RUN_LENGTH = 64;
+    private static final int RUNS = 1024;
+    private static final int HASH_BITS = 12;
+    private static final int SEQUENCE_BYTES = 4;
+    private static final double MAX_ENTROPY_BITS_PER_BYTE = 7.9;
+    private static final double MIN_REPEAT_RATE = 0.01;
+
+    private CompressibilitySampler() {
+    }
+
+    public static boolean isIncompressible(ByteBuffer block) {
+        int length = block.remaining();
+        if (length < RUN_LENGTH * RUNS) {
+            return false; // too small to sample reliably, and cheap to compress anyway
+        }
+
+        HuffmanFrequencies frequencies = new HuffmanFrequencies();
+        int[] sequences = new int[1 << HASH_BITS];
+        int repeats = 0;
+        int sampled = 0;
+        int stride = (length - RUN_LENGTH) / RUNS;
+        for (int run = 0; run < RUNS; run++) {
+            int start = block.position() + run * stride;
+            int sequence = 0;
+            for (int i = 0; i < RUN_LENGTH; i++) {
+                byte b = block.get(start + i);
+                frequencies.increment(b);
+                sequence = sequence << Byte.SIZE | (b & 0xFF);
+                if (i >= SEQUENCE_BYTES - 1) {
+                    int h = (sequence * 0x9E3779B1) >>> (Integer.SIZE - HASH_BITS);
+                    if (sequences[h] == sequence) {
+                        repeats++;
+                    }
+                    sequences[h] = sequence;
+                    sampled++;
+                }
+            }
+        }
+
+        double entropyPerByte = frequencies.getEntropyBits() / (RUNS * RUN_LENGTH);
+        return entropyPerByte > MAX_ENTROPY_BITS_PER_BYTE && repeats < sampled * MIN_REPEAT_RATE;
+    }
+}
+
+/**
+ * The threads blocks are coded on and the block buffers they read from. A
+ * container makes its own for one file, a batch shares one between all of
+ * its files, so that threads stay warm and buffers are reused from file to
+ * file.
+ */
+class BlockWorkers implements AutoCloseable {
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final int maxBuffers;
+    private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param threads    the number of threads coding blocks
+     * @param maxPending how many blocks each container keeps in flight
+     * @param maxBuffers how many free block buffers are kept for reuse
+     */
+    public BlockWorkers(int threads, int maxPending, int maxBuffers) {
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.maxPending = maxPending;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * Workers for a single container, which keeps
+     * {@link BlockContainer#BLOCKS_IN_FLIGHT_PER_THREAD} blocks per thread in
+     * flight.
+     */
+    public static BlockWorkers forContainer(int threads) {
+        int maxPending = threads * BlockContainer.BLOCKS_IN_FLIGHT_PER_THREAD;
+        return new BlockWorkers(threads, maxPending, maxPending + 1);
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * @return a buffer of exactly size bytes, with undefined content
+     */
+    public byte[] acquireBuffer(int size) {
+        byte[] buffer = buffers.poll();
+        return buffer != null && buffer.length == size ? buffer : new byte[size];
+    }
+
+    public void releaseBuffer(byte[] buffer) {
+        // the count is only approximate under contention, which is good enough for a cache
+        if (buffers.size() < maxBuffers) {
+            buffers.offer(buffer);
+        }
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
+
+/**
+ * File format made of independently compressed blocks, so that blocks can be
+ * compressed on several threads at once:
+ * 
+ * <pre>
+ * magic "XCZ3"
+ * varint block size
+ * varint dictionary id, 0 if none
+ * for each block: varint uncompressed length, varint compressed length, data
+ * varint 0
+ * block index, see BlockIndex
+ * </pre>
+ * 
+ * The data of a block is the token blocks written by {@link TokenEncoder}. A
+ * block that would not get smaller is stored as is instead, which is marked by
+ * a compressed length equal to the uncompressed length. The output is
+ * therefore never larger than the input by more than the header, the block
+ * lengths and the final 0, plus the block index: its count, the block
+ * lengths again and a 12 byte trailer. With a dictionary, its content
+ * precedes every block for the parser and the decoder, see
+ * {@link Dictionary}.
+ */
+class BlockContainer {
+    static final byte[] MAGIC = { 'X', 'C', 'Z', '3' };
+    public static final int DEFAULT_BLOCK_SIZE = 4194304; // 4 MiB
+    static final int MAX_BLOCK_SIZE = 33554432; // 32 MiB, the blocks of the largest window
+    static final int WINDOWS_PER_BLOCK = 2;
+    static final int BLOCKS_IN_FLIGHT_PER_THREAD = 2;
+
+    static class CompressedBlock {
+        public final int uncompressedLength;
+        public final byte[] data;
+        public final Statistics statistics;
+
+        public CompressedBlock(int uncompressedLength, byte[] data, Statistics statistics) {
+            this.uncompressedLength = uncompressedLength;
+            this.data = data;
+            this.statistics = statistics;
+        }
+    }
+
+    static class DecompressedBlock {
+        public final byte[] data;
+        public final Statistics statistics;
+
+        public DecompressedBlock(byte[] data, Statistics statistics) {
+            this.data = data;
+            this.statistics = statistics;
+        }
+    }
+
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private final CompressionLevel level;
+    private final int threads;
+    private final BlockWorkers workers;
+    private final int blockSize;
+    private final StatisticsListener listener;
+    private final Dictionary dictionary;
+    private long blockIndex = 0;
+    private BlockIndex index;
+
+    public BlockContainer(InputStream inputStream, OutputStream outputStream, CompressionLevel level, int threads) {
+        this(inputStream, outputStream, level, threads, StatisticsListener.NONE);
+    }
+
+    public BlockContainer(InputStream inputStream, OutputStream outputStream, CompressionLevel level, int threads,
+            StatisticsListener listener) {
+        this(inputStream, outputStream, level, threads, listener, null);
+    }
+
+    /**
+     * @param dictionary the dictionary to compress with, or to decompress data
+     *                   that was compressed with it; may be null
+     */
+    public BlockContainer(InputStream inputStream, OutputStream outputStream, CompressionLevel level, int threads,
+            StatisticsListener listener, Dictionary dictionary) {
+        this(inputStream, outputStream, level, threads, null, listener, dictionary);
+    }
+
+    /**
+     * Codes the blocks on workers shared with other containers.
+     */
+    public BlockContainer(InputStream inputStream, OutputStream outputStream, CompressionLevel level,
+            BlockWorkers workers, StatisticsListener listener, Dictionary dictionary) {
+        this(inputStream, outputStream, level, 0, workers, listener, dictionary);
+    }
+
+    private BlockContainer(InputStream inputStream, OutputStream outputStream, CompressionLevel level, int threads,
+            BlockWorkers workers, StatisticsListener listener, Dictionary dictionary) {
+        this.inputStream = new BufferedInputStream(inputStream);
+        this.outputStream = new BufferedOutputStream(outputStream);
+        this.level = level;
+        this.threads = threads;
+        this.workers = workers;
+        this.blockSize = getBlockSize(level);
+        this.listener = listener;
+        this.dictionary = dictionary;
+    }
+
+    static int getDictionaryId(Dictionary dictionary) {
+        return dictionary == null ? 0 : dictionary.getId();
+    }
+
+    /**
+     * @return the dictionary to decompress data compressed with the given
+     *         dictionary id, null for none
+     */
+    static Dictionary checkDictionary(int dictionaryId, Dictionary dictionary) throws IOException {
+        if (dictionaryId == 0) {
+            return null;
+        }
+        if (dictionary == null) {
+            throw new IOException("Data was compressed with a dictionary, id " + dictionaryId + ".");
+        }
+        if (dictionary.getId() != dictionaryId) {
+            throw new IOException("Data was compressed with a different dictionary, id " + dictionaryId + ".");
+        }
+        return dictionary;
+    }
+
+    /**
+     * Blocks are compressed independently, so matches can only reach as far
+     * back as the start of their block. Blocks are made large enough for the
+     * window of the level to be of use.
+     */
+    static int getBlockSize(CompressionLevel level) {
+        return Math.max(DEFAULT_BLOCK_SIZE, level.getWindowSize() * WINDOWS_PER_BLOCK);
+    }
+
+    /**
+     * Checks a block size read from a container header before readers size
+     * their buffers by it.
+     * 
+     * @return blockSize
+     */
+    static int checkBlockSize(int blockSize) throws IOException {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IOException("Invalid block size: " + blockSize + " B.");
+        }
+        return blockSize;
+    }
+
+    /**
+     * Checks the lengths of a block header against the block size of its
+     * container. An uncompressed length of 0 ends the blocks, so callers
+     * handle it first and it is invalid here.
+     */
+    static void checkBlockLengths(int uncompressedLength, int compressedLength, int blockSize) throws IOException {
+        if (uncompressedLength <= 0 || uncompressedLength > blockSize) {
+            throw new IOException("Invalid block length: " + uncompressedLength + " B.");
+        }
+        if (compressedLength < 0 || compressedLength > uncompressedLength) {
+            throw new IOException("Invalid compressed length " + compressedLength + " B for a block of "
+                    + uncompressedLength + " B.");
+        }
+    }
+
+    static CompressedBlock compressBlock(ByteBuffer block, CompressionLevel level) throws IOException {
+        return compressBlock(block, level, null);
+    }
+
+    /**
+     * @param dictionary the dictionary to compress with, or null
+     */
+    static CompressedBlock compressBlock(ByteBuffer block, CompressionLevel level, Dictionary dictionary)
+            throws IOException {
+        int length = block.remaining();
+        Statistics statistics = new Statistics();
+        statistics.blocks = 1;
+
+        long start = System.nanoTime();
+        if (CompressibilitySampler.isIncompressible(block)) {
+            return storeBlock(block, statistics, start);
+        }
+
+        // the tokens are coded as the parser produces them, the coder keeps count of its own time
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(length / 2);
+        LempelZivAlgorithm lempelZiv = new LempelZivAlgorithm(level);
+        if (dictionary == null) {
+            lempelZiv.compress(block.duplicate(), new TokenEncoder(outputStream));
+        } else {
+            // the parser searches the dictionary as if it preceded the block
+            byte[] content = dictionary.getContent();
+            ByteBuffer data = ByteBuffer.allocate(content.length + length).put(content).put(block.duplicate());
+            lempelZiv.compress(data.flip(), content.length, new TokenEncoder(outputStream, dictionary));
+        }
+        if (outputStream.size() >= length) {
+            return storeBlock(block, statistics, start);
+        }
+
+        statistics.add(lempelZiv.getStatistics());
+        statistics.lzNanos = System.nanoTime() - start - statistics.huffmanNanos;
+        return new CompressedBlock(length, outputStream.toByteArray(), statistics);
+    }
+
+    private static CompressedBlock storeBlock(ByteBuffer block, Statistics statistics, long start) {
+        byte[] data = new byte[block.remaining()];
+        block.duplicate().get(data);
+        statistics.storedBlocks = 1;
+        statistics.lzInputBytes = data.length;
+        statistics.huffmanOutputBytes = data.length;
+        statistics.lzNanos = System.nanoTime() - start;
+        return new CompressedBlock(data.length, data, statistics);
+    }
+
+    static DecompressedBlock decompressBlock(byte[] data, int uncompressedLength) throws IOException {
+        return decompressBlock(data, uncompressedLength, null);
+    }
+
+    /**
+     * @param dictionary the dictionary the block was compressed with, or null
+     */
+    static DecompressedBlock decompressBlock(byte[] data, int uncompressedLength, Dictionary dictionary)
+            throws IOException {
+        long start = System.nanoTime();
+        Statistics statistics = new Statistics();
+        byte[] block;
+        if (data.length == uncompressedLength) {
+            block = data;
+            statistics.storedBlocks = 1;
+        } else if (dictionary == null) {
+            block = new byte[uncompressedLength];
+            TokenDecoder.decode(data, block, statistics);
+        } else {
+            // decoded after the dictionary content, which matches may reach into
+            byte[] content = dictionary.getContent();
+            byte[] output = Arrays.copyOf(content, content.length + uncompressedLength);
+            TokenDecoder.decode(data, output, content.length, dictionary, statistics);
+            block = Arrays.copyOfRange(output, content.length, output.length);
+        }
+
+        statistics.blocks = 1;
+        statistics.lzInputBytes = uncompressedLength;
+        statistics.huffmanOutputBytes = data.length;
+        statistics.huffmanNanos = System.nanoTime() - start;
+        return new DecompressedBlock(block, statistics);
+    }
+
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for block");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void writeBlock(CompressedBlock block) throws IOException {
+        VariableWidthEncoding.encode(block.uncompressedLength, outputStream);
+        VariableWidthEncoding.encode(block.data.length, outputStream);
+        outputStream.write(block.data);
+        index.add(block.uncompressedLength, block.data.length);
+        listener.blockFinished(blockIndex++, block.statistics);
+    }
+
+    private void writeBlock(DecompressedBlock block) throws IOException {
+        outputStream.write(block.data);
+        listener.blockFinished(blockIndex++, block.statistics);
+    }
+
+    /**
+     * Writes the magic, the block size and the dictionary id.
+     * 
+     * @return the number of bytes written
+     */
+    static int writeHeader(OutputStream outputStream, int blockSize, Dictionary dictionary) throws IOException {
+        int dictionaryId = getDictionaryId(dictionary);
+        outputStream.write(MAGIC);
+        VariableWidthEncoding.encode(blockSize, outputStream);
+        VariableWidthEncoding.encode(dictionaryId, outputStream);
+        return MAGIC.length + VariableWidthEncoding.getEncodedSize(blockSize)
+                + VariableWidthEncoding.getEncodedSize(dictionaryId);
+    }
+
+    public void compress() throws IOException {
+        index = new BlockIndex(blockSize, writeHeader(outputStream, blockSize, dictionary));
+
+        BlockWorkers blockWorkers = workers != null ? workers : BlockWorkers.forContainer(threads);
+        try {
+            // blocks are written in input order, and only a bounded number are kept in memory
+            ArrayDeque<Future<CompressedBlock>> pending = new ArrayDeque<>();
+            while (true) {
+                byte[] block = blockWorkers.acquireBuffer(blockSize);
+                int length = inputStream.readNBytes(block, 0, blockSize);
+                if (length == 0) {
+                    blockWorkers.releaseBuffer(block);
+                    break;
+                }
+                pending.add(blockWorkers.submit(() -> {
+                    // the compressed block holds no reference to the buffer
+                    CompressedBlock compressed = compressBlock(ByteBuffer.wrap(block, 0, length), level, dictionary);
+                    blockWorkers.releaseBuffer(block);
+                    return compressed;
+                }));
+                if (pending.size() >= blockWorkers.getMaxPending()) {
+                    writeBlock(await(pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeBlock(await(pending.poll()));
+            }
+        } finally {
+            if (workers == null) {
+                blockWorkers.close();
+            }
+        }
+
+        VariableWidthEncoding.encode(0, outputStream);
+        index.write(outputStream, index.getEndPosition() + 1);
+        outputStream.flush();
+    }
+
+    public void decompress() throws IOException {
+        byte[] magic = inputStream.readNBytes(MAGIC.length);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not an XCompress file.");
+        }
+        int containerBlockSize = checkBlockSize(VariableWidthEncoding.decode(inputStream));
+        Dictionary blockDictionary = checkDictionary(VariableWidthEncoding.decode(inputStream), dictionary);
+
+        BlockWorkers blockWorkers = workers != null ? workers : BlockWorkers.forContainer(threads);
+        try {
+            // blocks are decoded concurrently but written in order, see compress()
+            ArrayDeque<Future<DecompressedBlock>> pending = new ArrayDeque<>();
+            int uncompressedLength;
+            while ((uncompressedLength = VariableWidthEncoding.decode(inputStream)) != 0) {
+                int compressedLength = VariableWidthEncoding.decode(inputStream);
+                checkBlockLengths(uncompressedLength, compressedLength, containerBlockSize);
+                byte[] data = inputStream.readNBytes(compressedLength);
+                if (data.length != compressedLength) {
+                    throw new IOException("Unexpected end of data.");
+                }
+                int length = uncompressedLength;
+                pending.add(blockWorkers.submit(() -> decompressBlock(data, length, blockDictionary)));
+                if (pending.size() >= blockWorkers.getMaxPending()) {
+                    writeBlock(await(pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeBlock(await(pending.poll()));
+            }
+        } finally {
+            if (workers == null) {
+                blockWorkers.close();
+            }
+        }
+        outputStream.flush();
+    }
+}
+
+/**
+ * Where each block of a container file starts, in the uncompressed data and
+ * in the file, so that a range of the data can be decompressed without
+ * decoding the blocks before it. Written after the final 0 of the container:
+ * 
+ * <pre>
+ * varint block count
+ * for each block: varint uncompressed length, varint compressed length
+ * 8 byte big-endian position of the block count
+ * magic "XCZI"
+ * </pre>
+ * 
+ * Readers that decode the blocks in order stop at the final 0 and never see
+ * the index. Files without one are indexed by reading every block header.
+ */
+class BlockIndex {
+    static final byte[] MAGIC = { 'X', 'C', 'Z', 'I' };
+    private static final int TRAILER_SIZE = Long.BYTES + MAGIC.length;
+    private static final int HEADER_READ_SIZE = 16;
+
+    static class Entry {
+        public final int uncompressedLength;
+        public final long compressedPosition;
+        public final int compressedLength;
+        public final long outputPosition;
+
+        public Entry(int uncompressedLength, long compressedPosition, int compressedLength, long outputPosition) {
+            this.uncompressedLength = uncompressedLength;
+            this.compressedPosition = compressedPosition;
+            this.compressedLength = compressedLength;
+            this.outputPosition = outputPosition;
+        }
+    }
+
+    private final int blockSize;
+    private int dictionaryId = 0;
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private long endPosition; // position of the next block header, or of the final 0
+    private long uncompressedSize = 0;
+
+    public BlockIndex(int blockSize, long firstBlockPosition) {
+        this.blockSize = blockSize;
+        this.endPosition = firstBlockPosition;
+    }
+
+    /**
+     * Appends the block following the last one added.
+     */
+    public void add(int uncompressedLength, int compressedLength) {
+        long compressedPosition = endPosition + VariableWidthEncoding.getEncodedSize(uncompressedLength)
+                + VariableWidthEncoding.getEncodedSize(compressedLength);
+        entries.add(new Entry(uncompressedLength, compressedPosition, compressedLength, uncompressedSize));
+        endPosition = compressedPosition + compressedLength;
+        uncompressedSize += uncompressedLength;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return the id of the dictionary the container was compressed with, 0 for none
+     */
+    public int getDictionaryId() {
+        return dictionaryId;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    /**
+     * @return the position following the last block, where the container has its final 0
+     */
+    public long getEndPosition() {
+        return endPosition;
+    }
+
+    /**
+     * @return the index of the block holding the byte at offset in the uncompressed data
+     */
+    public int findBlock(long offset) {
+        int low = 0;
+        int high = entries.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (entries.get(middle).outputPosition <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Writes the index, which starts at position in the file.
+     */
+    public void write(OutputStream outputStream, long position) throws IOException {
+        VariableWidthEncoding.encode(entries.size(), outputStream);
+        for (Entry entry : entries) {
+            VariableWidthEncoding.encode(entry.uncompressedLength, outputStream);
+            VariableWidthEncoding.encode(entry.compressedLength, outputStream);
+        }
+        outputStream.write(ByteBuffer.allocate(TRAILER_SIZE).putLong(position).put(MAGIC).array());
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position + buffer.position());
+            if (bytesRead < 0) {
+                break;
+            }
+        }
+        return buffer.flip();
+    }
+
+    private void checkBlock(int uncompressedLength, int compressedLength) throws IOException {
+        BlockContainer.checkBlockLengths(uncompressedLength, compressedLength, blockSize);
+    }
+
+    /**
+     * Reads the index at the end of a container file, or builds it from the
+     * block headers if the file has none.
+     */
+    public static BlockIndex read(FileChannel channel) throws IOException {
+        ByteBuffer header = readAt(channel, 0, HEADER_READ_SIZE);
+        byte[] magic = new byte[BlockContainer.MAGIC.length];
+        if (header.remaining() < magic.length) {
+            throw new IOException("Not an XCompress file.");
+        }
+        header.get(magic);
+        if (!Arrays.equals(magic, BlockContainer.MAGIC)) {
+            throw new IOException("Not an XCompress file.");
+        }
+        int blockSize = BlockContainer.checkBlockSize(VariableWidthEncoding.decode(header));
+        int dictionaryId = VariableWidthEncoding.decode(header);
+        BlockIndex index = new BlockIndex(blockSize, header.position());
+        index.dictionaryId = dictionaryId;
+        long size = channel.size();
+
+        if (size >= index.endPosition + 1 + TRAILER_SIZE) {
+            ByteBuffer trailer = readAt(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+            long indexPosition = trailer.getLong();
+            trailer.get(magic);
+            if (Arrays.equals(magic, MAGIC) && indexPosition > index.endPosition
+                    && indexPosition < size - TRAILER_SIZE) {
+                long indexLength = size - TRAILER_SIZE - indexPosition;
+                if (indexLength > Integer.MAX_VALUE) {
+                    throw new IOException("Block index too large: " + indexLength + " B.");
+                }
+                ByteBuffer data = readAt(channel, indexPosition, (int) indexLength);
+                int count = VariableWidthEncoding.decode(data);
+                // every entry takes at least two bytes, so a larger count cannot be right
+                if (count < 0 || count > data.remaining() / 2) {
+                    throw new IOException("Invalid block count: " + count + ".");
+                }
+                for (int i = 0; i < count; i++) {
+                    int uncompressedLength = VariableWidthEncoding.decode(data);
+                    int compressedLength = VariableWidthEncoding.decode(data);
+                    index.checkBlock(uncompressedLength, compressedLength);
+                    index.add(uncompressedLength, compressedLength);
+                }
+                if (index.endPosition + 1 != indexPosition) {
+                    throw new IOException("Block index does not match the blocks.");
+                }
+                return index;
+            }
+        }
+
+        while (true) {
+            header = readAt(channel, index.endPosition, HEADER_READ_SIZE);
+            int uncompressedLength = VariableWidthEncoding.decode(header);
+            if (uncompressedLength == 0) {
+                break;
+            }
+            int compressedLength = VariableWidthEncoding.decode(header);
+            index.checkBlock(uncompressedLength, compressedLength);
+            index.add(uncompressedLength, compressedLength);
+            if (index.endPosition > size) {
+                throw new IOException("Unexpected end of data.");
+            }
+        }
+        return index;
+    }
+}
+
+/**
+ * Same format as BlockContainer, but reads the input through memory-mapped
+ * regions and writes the output with positional writes instead of streams.
+ */
+class MappedBlockContainer {
+    private static final int HEADER_WRITE_SIZE = 16;
+
+    private final FileChannel inputChannel;
+    private final FileChannel outputChannel;
+    private final CompressionLevel level;
+    private final int threads;
+    private final BlockWorkers workers;
+    private final int blockSize;
+    private final StatisticsListener listener;
+    private final Dictionary dictionary;
+    private long blockIndex = 0;
+
+    public MappedBlockContainer(FileChannel inputChannel, FileChannel outputChannel, CompressionLevel level,
+            int threads) {
+        this(inputChannel, outputChannel, level, threads, StatisticsListener.NONE);
+    }
+
+    public MappedBlockContainer(FileChannel inputChannel, FileChannel outputChannel, CompressionLevel level,
+            int threads, StatisticsListener listener) {
+        this(inputChannel, outputChannel, level, threads, listener, null);
+    }
+
+    /**
+     * @param dictionary see {@link BlockContainer}, may be null
+     */
+    public MappedBlockContainer(FileChannel inputChannel, FileChannel outputChannel, CompressionLevel level,
+            int threads, StatisticsListener listener, Dictionary dictionary) {
+        this(inputChannel, outputChannel, level, threads, null, listener, dictionary);
+    }
+
+    /**
+     * Codes the blocks on workers shared with other containers.
+     */
+    public MappedBlockContainer(FileChannel inputChannel, FileChannel outputChannel, CompressionLevel level,
+            BlockWorkers workers, StatisticsListener listener, Dictionary dictionary) {
+        this(inputChannel, outputChannel, level, 0, workers, listener, dictionary);
+    }
+
+    private MappedBlockContainer(FileChannel inputChannel, FileChannel outputChannel, CompressionLevel level,
+            int threads, BlockWorkers workers, StatisticsListener listener, Dictionary dictionary) {
+        this.inputChannel = inputChannel;
+        this.outputChannel = outputChannel;
+        this.level = level;
+        this.threads = threads;
+        this.workers = workers;
+        this.blockSize = BlockContainer.getBlockSize(level);
+        this.listener = listener;
+        this.dictionary = dictionary;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private long writeBlock(BlockContainer.CompressedBlock block, BlockIndex index, long position)
+            throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_WRITE_SIZE);
+        VariableWidthEncoding.encode(block.uncompressedLength, header);
+        VariableWidthEncoding.encode(block.data.length, header);
+        writeFully(outputChannel, ByteBuffer.wrap(header.toByteArray()), position);
+        position += header.size();
+        writeFully(outputChannel, ByteBuffer.wrap(block.data), position);
+        index.add(block.uncompressedLength, block.data.length);
+        listener.blockFinished(blockIndex++, block.statistics);
+        return position + block.data.length;
+    }
+
+    public void compress() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_WRITE_SIZE);
+        BlockContainer.writeHeader(header, blockSize, dictionary);
+        writeFully(outputChannel, ByteBuffer.wrap(header.toByteArray()), 0);
+        long outputPosition = header.size();
+        BlockIndex index = new BlockIndex(blockSize, outputPosition);
+
+        long inputSize = inputChannel.size();
+        BlockWorkers blockWorkers = workers != null ? workers : BlockWorkers.forContainer(threads);
+        try {
+            // blocks are mapped and compressed concurrently, but written in input order
+            ArrayDeque<Future<BlockContainer.CompressedBlock>> pending = new ArrayDeque<>();
+            for (long inputPosition = 0; inputPosition < inputSize; inputPosition += blockSize) {
+                ByteBuffer block = inputChannel.map(FileChannel.MapMode.READ_ONLY, inputPosition,
+                        Math.min(blockSize, inputSize - inputPosition));
+                pending.add(blockWorkers.submit(() -> BlockContainer.compressBlock(block, level, dictionary)));
+                if (pending.size() >= blockWorkers.getMaxPending()) {
+                    outputPosition = writeBlock(BlockContainer.await(pending.poll()), index, outputPosition);
+                }
+            }
+            while (!pending.isEmpty()) {
+                outputPosition = writeBlock(BlockContainer.await(pending.poll()), index, outputPosition);
+            }
+        } finally {
+            if (workers == null) {
+                blockWorkers.close();
+            }
+        }
+
+        ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+        VariableWidthEncoding.encode(0, trailer);
+        index.write(trailer, outputPosition + 1);
+        writeFully(outputChannel, ByteBuffer.wrap(trailer.toByteArray()), outputPosition);
+    }
+
+    public void decompress() throws IOException {
+        BlockIndex index = BlockIndex.read(inputChannel);
+        decompressBlocks(index, index.getEntries(), 0, index.getUncompressedSize());
+    }
+
+    /**
+     * Decompresses only the blocks holding length bytes from start of the
+     * uncompressed data, and writes those bytes to the start of the output.
+     * 
+     * @return the number of bytes written, less than length if the data ends first
+     */
+    public long decompressRange(long start, long length) throws IOException {
+        BlockIndex index = BlockIndex.read(inputChannel);
+        long end = start + Math.min(length, Math.max(index.getUncompressedSize() - start, 0));
+        if (end <= start) {
+            return 0;
+        }
+        int first = index.findBlock(start);
+        int last = index.findBlock(end - 1);
+        decompressBlocks(index, index.getEntries().subList(first, last + 1), start, end);
+        return end - start;
+    }
+
+    /**
+     * Decodes the blocks and writes the part of them from start to end of the
+     * uncompressed data to the output, at their position relative to start.
+     */
+    private void decompressBlocks(BlockIndex index, List<BlockIndex.Entry> blocks, long start, long end)
+            throws IOException {
+        Dictionary blockDictionary = BlockContainer.checkDictionary(index.getDictionaryId(), dictionary);
+
+        // every block's place in the output is known, so the output can be allocated up front
+        // and the blocks written in any order
+        if (end > start) {
+            writeFully(outputChannel, ByteBuffer.wrap(new byte[] { 0 }), end - start - 1);
+        }
+
+        BlockWorkers blockWorkers = workers != null ? workers : BlockWorkers.forContainer(threads);
+        try {
+            ArrayDeque<Future<Statistics>> pending = new ArrayDeque<>();
+            for (BlockIndex.Entry entry : blocks) {
+                pending.add(blockWorkers.submit(() -> {
+                    byte[] data = new byte[entry.compressedLength];
+                    inputChannel.map(FileChannel.MapMode.READ_ONLY, entry.compressedPosition, entry.compressedLength)
+                            .get(data);
+                    BlockContainer.DecompressedBlock block = BlockContainer.decompressBlock(data,
+                            entry.uncompressedLength, blockDictionary);
+                    long from = Math.max(entry.outputPosition, start);
+                    long to = Math.min(entry.outputPosition + entry.uncompressedLength, end);
+                    writeFully(outputChannel,
+                            ByteBuffer.wrap(block.data, (int) (from - entry.outputPosition), (int) (to - from)),
+                            from - start);
+                    return block.statistics;
+                }));
+                if (pending.size() >= blockWorkers.getMaxPending()) {
+                    listener.blockFinished(blockIndex++, BlockContainer.await(pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                listener.blockFinished(blockIndex++, BlockContainer.await(pending.poll()));
+            }
+        } finally {
+            if (workers == null) {
+                blockWorkers.close();
+            }
+        }
+    }
+}
+
+/**
+ * Compresses what is written to it into the container format of
+ * {@link BlockContainer}, for code that produces its data bit by bit rather
+ * than having it in a file. Data is buffered up to a block at a time, so
+ * memory stays bounded by the block size times the number of blocks in
+ * flight. Blocks are compressed on the writing thread, or on workers if given.
+ */
+class XCompressOutputStream extends OutputStream {
+    private final OutputStream outputStream;
+    private final CompressionLevel level;
+    private final Dictionary dictionary;
+    private final BlockWorkers workers;
+    private final int blockSize;
+    private final BlockIndex index;
+    private final ArrayDeque<Future<BlockContainer.CompressedBlock>> pending = new ArrayDeque<>();
+    private byte[] block;
+    private int blockLength = 0;
+    private boolean closed = false;
+
+    public XCompressOutputStream(OutputStream outputStream) throws IOException {
+        this(outputStream, CompressionLevel.getDefault());
+    }
+
+    public XCompressOutputStream(OutputStream outputStream, CompressionLevel level) throws IOException {
+        this(outputStream, level, null, null);
+    }
+
+    /**
+     * @param dictionary the dictionary to compress with, or null
+     * @param workers    the workers to compress blocks on, or null to compress
+     *                   them on the writing thread
+     */
+    public XCompressOutputStream(OutputStream outputStream, CompressionLevel level, Dictionary dictionary,
+            BlockWorkers workers) throws IOException {
+        this.outputStream = outputStream;
+        this.level = level;
+        this.dictionary = dictionary;
+        this.workers = workers;
+        this.blockSize = BlockContainer.getBlockSize(level);
+        this.block = acquireBuffer();
+        this.index = new BlockIndex(blockSize, BlockContainer.writeHeader(outputStream, blockSize, dictionary));
+    }
+
+    private byte[] acquireBuffer() {
+        return workers != null ? workers.acquireBuffer(blockSize) : new byte[blockSize];
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed.");
+        }
+    }
+
+    public void write(int b) throws IOException {
+        ensureOpen();
+        block[blockLength++] = (byte) b;
+        if (blockLength == blockSize) {
+            compressBlock();
+        }
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        ensureOpen();
+        while (length > 0) {
+            int count = Math.min(length, blockSize - blockLength);
+            System.arraycopy(data, offset, block, blockLength, count);
+            blockLength += count;
+            offset += count;
+            length -= count;
+            if (blockLength == blockSize) {
+                compressBlock();
+            }
+        }
+    }
+
+    private void compressBlock() throws IOException {
+        if (blockLength == 0) {
+            return;
+        }
+        if (workers == null) {
+            writeBlock(BlockContainer.compressBlock(ByteBuffer.wrap(block, 0, blockLength), level, dictionary));
+            blockLength = 0;
+            return;
+        }
+
+        byte[] data = block;
+        int length = blockLength;
+        pending.add(workers.submit(() -> {
+            BlockContainer.CompressedBlock compressed = BlockContainer.compressBlock(ByteBuffer.wrap(data, 0, length),
+                    level, dictionary);
+            workers.releaseBuffer(data);
+            return compressed;
+        }));
+        block = acquireBuffer();
+        blockLength = 0;
+        if (pending.size() >= workers.getMaxPending()) {
+            writeBlock(BlockContainer.await(pending.poll()));
+        }
+    }
+
+    private void writeBlock(BlockContainer.CompressedBlock compressed) throws IOException {
+        VariableWidthEncoding.encode(compressed.uncompressedLength, outputStream);
+        VariableWidthEncoding.encode(compressed.data.length, outputStream);
+        outputStream.write(compressed.data);
+        index.add(compressed.uncompressedLength, compressed.data.length);
+    }
+
+    /**
+     * Compresses the bytes written so far as a block of their own, even if it
+     * is not full, and flushes everything to the underlying stream, so that
+     * the reader can decompress all of it. Smaller blocks compress less well,
+     * so flush only where the reader has to see the data.
+     */
+    public void flush() throws IOException {
+        ensureOpen();
+        compressBlock();
+        while (!pending.isEmpty()) {
+            writeBlock(BlockContainer.await(pending.poll()));
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Writes the remaining blocks, the end of the container and the block
+     * index, and closes the underlying stream.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+            VariableWidthEncoding.encode(0, outputStream);
+            index.write(outputStream, index.getEndPosition() + 1);
+            outputStream.flush();
+        } finally {
+            closed = true;
+            outputStream.close();
+        }
+    }
+}
+
+/**
+ * Decompresses a container read from the underlying stream, a block at a time.
+ * Reading stops at the end of the blocks, the block index is not read. Blocks
+ * are decompressed on the reading thread, or if workers are given, a few
+ * blocks ahead on those.
+ */
+class XCompressInputStream extends InputStream {
+    private final InputStream inputStream;
+    private final BlockWorkers workers;
+    private final int blockSize;
+    private final Dictionary dictionary;
+    private final ArrayDeque<Future<BlockContainer.DecompressedBlock>> pending = new ArrayDeque<>();
+    private byte[] block = new byte[0];
+    private int blockIndex = 0; // next byte of block to return
+    private boolean endOfBlocks = false;
+
+    public XCompressInputStream(InputStream inputStream) throws IOException {
+        this(inputStream, null, null);
+    }
+
+    /**
+     * @param dictionary the dictionary the data was compressed with, or null
+     * @param workers    the workers to decompress blocks on, or null to
+     *                   decompress them on the reading thread
+     */
+    public XCompressInputStream(InputStream inputStream, Dictionary dictionary, BlockWorkers workers)
+            throws IOException {
+        this.inputStream = inputStream;
+        this.workers = workers;
+        byte[] magic = inputStream.readNBytes(BlockContainer.MAGIC.length);
+        if (!Arrays.equals(magic, BlockContainer.MAGIC)) {
+            throw new IOException("Not an XCompress file.");
+        }
+        this.blockSize = BlockContainer.checkBlockSize(VariableWidthEncoding.decode(inputStream));
+        this.dictionary = BlockContainer.checkDictionary(VariableWidthEncoding.decode(inputStream), dictionary);
+    }
+
+    /**
+     * @return the next block as read, or null at the end of the blocks
+     */
+    private BlockContainer.CompressedBlock readBlock() throws IOException {
+        if (endOfBlocks) {
+            return null;
+        }
+        int uncompressedLength = VariableWidthEncoding.decode(inputStream);
+        if (uncompressedLength == 0) {
+            endOfBlocks = true;
+            return null;
+        }
+        int compressedLength = VariableWidthEncoding.decode(inputStream);
+        BlockContainer.checkBlockLengths(uncompressedLength, compressedLength, blockSize);
+        byte[] data = inputStream.readNBytes(compressedLength);
+        if (data.length != compressedLength) {
+            throw new IOException("Unexpected end of data.");
+        }
+        return new BlockContainer.CompressedBlock(uncompressedLength, data, new Statistics());
+    }
+
+    private BlockContainer.DecompressedBlock decompressBlock(BlockContainer.CompressedBlock compressed)
+            throws IOException {
+        return BlockContainer.decompressBlock(compressed.data, compressed.uncompressedLength, dictionary);
+    }
+
+    /**
+     * @return false at the end of the blocks
+     */
+    private boolean nextBlock() throws IOException {
+        if (workers == null) {
+            BlockContainer.CompressedBlock compressed = readBlock();
+            if (compressed == null) {
+                return false;
+            }
+            block = decompressBlock(compressed).data;
+        } else {
+            BlockContainer.CompressedBlock compressed;
+            while (pending.size() < workers.getMaxPending() && (compressed = readBlock()) != null) {
+                BlockContainer.CompressedBlock next = compressed;
+                pending.add(workers.submit(() -> decompressBlock(next)));
+            }
+            if (pending.isEmpty()) {
+                return false;
+            }
+            block = BlockContainer.await(pending.poll()).data;
+        }
+        blockIndex = 0;
+        return true;
+    }
+
+    public int read() throws IOException {
+        while (blockIndex == block.length) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        return block[blockIndex++] & 0xFF;
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (blockIndex == block.length) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        int count = Math.min(length, block.length - blockIndex);
+        System.arraycopy(block, blockIndex, buffer, offset, count);
+        blockIndex += count;
+        return count;
+    }
+
+    public int available() {
+        return block.length - blockIndex;
+    }
+
+    public void close() throws IOException {
+        for (Future<BlockContainer.DecompressedBlock> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        inputStream.close();
+    }
+}
+
+/**
+ * Reads the underlying stream ahead on a thread of its own, up to depth
+ * chunks, so that waiting for the disk or the network overlaps with whatever
+ * the reader does with the data. The thread stops when idle.
+ */
+class ReadAheadInputStream extends InputStream {
+    private static final ArrayWithSize EMPTY = new ArrayWithSize(new byte[0], 0);
+
+    private final InputStream inputStream;
+    private final int chunkSize;
+    private final int depth;
+    private final ExecutorService reader = IoThreads.newIoExecutor("XCompress read-ahead");
+    private final ArrayDeque<Future<ArrayWithSize>> pending = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<byte[]> freeChunks = new ConcurrentLinkedQueue<>();
+    private ArrayWithSize chunk = EMPTY;
+    private int chunkIndex = 0;
+    private boolean endOfStream = false; // a read came back short, so no more are started
+
+    public ReadAheadInputStream(InputStream inputStream, int chunkSize, int depth) {
+        this.inputStream = inputStream;
+        this.chunkSize = chunkSize;
+        this.depth = IoThreads.limitDepth(depth, chunkSize);
+    }
+
+    private void readAhead() {
+        while (!endOfStream && pending.size() < depth) {
+            byte[] buffer = freeChunks.poll();
+            byte[] array = buffer != null ? buffer : new byte[chunkSize];
+            // reads run one at a time and in order on the single thread
+            pending.add(reader.submit(() -> new ArrayWithSize(array, inputStream.readNBytes(array, 0, chunkSize))));
+        }
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    private boolean nextChunk() throws IOException {
+        while (chunkIndex == chunk.size) {
+            if (chunk != EMPTY) {
+                freeChunks.offer(chunk.array);
+                chunk = EMPTY;
+                chunkIndex = 0;
+            }
+            readAhead();
+            if (pending.isEmpty()) {
+                return false;
+            }
+            chunk = BlockContainer.await(pending.poll());
+            chunkIndex = 0;
+            if (chunk.size < chunkSize) {
+                endOfStream = true;
+            }
+        }
+        return true;
+    }
+
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return chunk.array[chunkIndex++] & 0xFF;
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int count = Math.min(length, chunk.size - chunkIndex);
+        System.arraycopy(chunk.array, chunkIndex, buffer, offset, count);
+        chunkIndex += count;
+        return count;
+    }
+
+    public int available() {
+        return chunk.size - chunkIndex;
+    }
+
+    public void close() throws IOException {
+        reader.shutdownNow();
+        inputStream.close();
+    }
+}
+
+/**
+ * Hands full chunks to a thread of its own that writes them to the
+ * underlying stream, up to depth chunks behind, so that the writer does not
+ * wait for the disk or the network. Errors of the write-behind thread are
+ * thrown by the next call. The thread stops when idle.
+ */
+class WriteBehindOutputStream extends OutputStream {
+    private final OutputStream outputStream;
+    private final int chunkSize;
+    private final int depth;
+    private final ExecutorService writer = IoThreads.newIoExecutor("XCompress write-behind");
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>(); // each returns its chunk for reuse
+    private byte[] chunk;
+    private int chunkLength = 0;
+
+    public WriteBehindOutputStream(OutputStream outputStream, int chunkSize, int depth) {
+        this.outputStream = outputStream;
+        this.chunkSize = chunkSize;
+        this.depth = IoThreads.limitDepth(depth, chunkSize);
+        this.chunk = new byte[chunkSize];
+    }
+
+    private void writeChunk() throws IOException {
+        if (chunkLength == 0) {
+            return;
+        }
+        byte[] data = chunk;
+        int length = chunkLength;
+        // writes run one at a time and in order on the single thread
+        pending.add(writer.submit(() -> {
+            outputStream.write(data, 0, length);
+            return data;
+        }));
+        chunkLength = 0;
+        byte[] written = null;
+        try {
+            // the chunk just queued counts too, so depth chunks stay in flight
+            while (pending.size() > depth) {
+                written = BlockContainer.await(pending.poll());
+            }
+        } finally {
+            chunk = written != null ? written : new byte[chunkSize];
+        }
+    }
+
+    public void write(int b) throws IOException {
+        chunk[chunkLength++] = (byte) b;
+        if (chunkLength == chunkSize) {
+            writeChunk();
+        }
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, chunkSize - chunkLength);
+            System.arraycopy(data, offset, chunk, chunkLength, count);
+            chunkLength += count;
+            offset += count;
+            length -= count;
+            if (chunkLength == chunkSize) {
+                writeChunk();
+            }
+        }
+    }
+
+    /**
+     * Waits until everything written so far is written to the underlying
+     * stream, and flushes it.
+     */
+    public void flush() throws IOException {
+        writeChunk();
+        while (!pending.isEmpty()) {
+            BlockContainer.await(pending.poll());
+        }
+        outputStream.flush();
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            writer.shutdownNow();
+            outputStream.close();
+        }
+    }
+}
+
+class IoThreads {
+    private static final long IDLE_SECONDS = 1;
+    private static final int HEAP_SHARE = 16; // each stream buffers at most this part of the heap
+
+    /**
+     * @return depth, at least 1 and lowered so that the chunks of a stream
+     *         take no more than a small part of the maximum heap
+     */
+    static int limitDepth(int depth, int chunkSize) {
+        long maxChunks = Runtime.getRuntime().maxMemory() / HEAP_SHARE / chunkSize;
+        return (int) Math.max(1, Math.min(depth, maxChunks));
+    }
+
+    /**
+     * @return an executor running tasks one at a time and in order on a daemon
+     *         thread, which ends when idle, so that streams that are not closed
+     *         do not leave threads behind
+     */
+    static ExecutorService newIoExecutor(String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 }
 
-class HuffmanAlgorithm {
-    private static final int BLOCK_SIZE = 16777220; // 16 MiB
+/**
+ * Reads a stream sent as frames, each a varint length followed by that many
+ * bytes, up to the frame of length 0 that ends it. Frames let a connection
+ * carry one request after the other without knowing their sizes up front.
+ */
+class FramedInputStream extends InputStream {
+    static final int MAX_FRAME_SIZE = 16777216; // 16 MiB
 
     private final InputStream inputStream;
-    private final OutputStream outputStream;
+    private int remaining = 0; // bytes left in the current frame
+    private boolean ended = false;
 
-    public HuffmanAlgorithm(InputStream inputStream, OutputStream outputStream) {
-        this.inputStream = new BufferedInputStream(inputStream);
-        this.outputStream = new BufferedOutputStream(outputStream);
+    public FramedInputStream(InputStream inputStream) {
+        this.inputStream = inputStream;
     }
 
-    private void compressBlock(byte[] block, int length) throws IOException {
-        System.out.println("Constructing frequency table...");
-        HuffmanFrequencies frequencies = new HuffmanFrequencies();
-        for (int i = 0; i < length; i++) {
-            frequencies.increment(block[i]);
+    private boolean nextFrame() throws IOException {
+        while (!ended && remaining == 0) {
+            remaining = VariableWidthEncoding.decode(inputStream);
+            if (remaining < 0 || remaining > MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame length: " + remaining + " B.");
+            }
+            ended = remaining == 0;
         }
+        return !ended;
+    }
 
-        frequencies.serialize(outputStream);
-        VariableWidthEncoding.encode(length, outputStream);
+    public int read() throws IOException {
+        if (!nextFrame()) {
+            return -1;
+        }
+        int b = inputStream.read();
+        if (b == -1) {
+            throw new IOException("Unexpected end of data.");
+        }
+        remaining--;
+        return b;
+    }
 
-        System.out.printf("Compressing block (%d B)...%n", length);
-        BitBuffer bitBuffer = new BitBuffer();
-        HuffmanTree tree = new HuffmanTree(frequencies);
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextFrame()) {
+            return -1;
+        }
+        int bytesRead = inputStream.read(buffer, offset, Math.min(length, remaining));
+        if (bytesRead == -1) {
+            throw new IOException("Unexpected end of data.");
+        }
+        remaining -= bytesRead;
+        return bytesRead;
+    }
 
-        for (int i = 0; i < length; i++) {
-            BitSegment bitSegment = tree.encode(block[i]);
-            bitBuffer.add(bitSegment);
-            int b;
-            while ((b = bitBuffer.read()) != -1) {
-                outputStream.write(b);
+    /**
+     * Reads up to the end of the stream, so that whatever follows on the
+     * underlying stream can be read next.
+     */
+    public void skipToEnd() throws IOException {
+        while (nextFrame()) {
+            remaining -= inputStream.skip(remaining);
+            if (remaining > 0 && read() == -1) {
+                break;
             }
         }
-        int b = bitBuffer.readFinal();
-        if (b != -1) {
-            outputStream.write(b);
+    }
+
+    /**
+     * Leaves the underlying stream open.
+     */
+    public void close() {
+    }
+}
+
+/**
+ * Writes a stream as frames, see {@link FramedInputStream}.
+ */
+class FramedOutputStream extends OutputStream {
+    private static final int FRAME_SIZE = 65536;
+
+    private final OutputStream outputStream;
+    private final byte[] buffer = new byte[FRAME_SIZE];
+    private int size = 0;
+
+    public FramedOutputStream(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    private void writeFrame() throws IOException {
+        if (size > 0) {
+            VariableWidthEncoding.encode(size, outputStream);
+            outputStream.write(buffer, 0, size);
+            size = 0;
+        }
+    }
+
+    public void write(int b) throws IOException {
+        if (size == buffer.length) {
+            writeFrame();
         }
+        buffer[size++] = (byte) b;
     }
 
-    public void compress() throws IOException {
-        byte[] block = new byte[BLOCK_SIZE];
-        int length;
-        while ((length = inputStream.read(block)) != -1) {
-            compressBlock(block, length);
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (size == buffer.length) {
+                writeFrame();
+            }
+            int count = Math.min(length, buffer.length - size);
+            System.arraycopy(data, offset, buffer, size, count);
+            size += count;
+            offset += count;
+            length -= count;
         }
+    }
+
+    public void flush() throws IOException {
+        writeFrame();
+        outputStream.flush();
+    }
+
+    /**
+     * Writes the frame that ends the stream and flushes, but leaves the
+     * underlying stream open.
+     */
+    public void finish() throws IOException {
+        writeFrame();
+        VariableWidthEncoding.encode(0, outputStream);
         outputStream.flush();
     }
+}
 
-    private int decompressBlock(byte[] block) throws IOException {
-        System.out.println("Reading frequency table..");
-        HuffmanFrequencies frequencies = HuffmanFrequencies.deserialize(inputStream);
-        int blockLength = VariableWidthEncoding.decode(inputStream);
+/**
+ * Compresses and decompresses for other processes over a local socket, so
+ * that they do not pay for starting and warming up a JVM per request. The
+ * address is a localhost TCP port or the path of a Unix domain socket. Each
+ * connection carries any number of requests, one after the other:
+ * 
+ * <pre>
+ * request:  operation 'c' or 'd', level (0 for the default), window bits (0 for the default),
+ *           the input as frames, see FramedInputStream
+ * response: the output as frames, status 0 for success,
+ *           or else status 1, varint length, UTF-8 error message, and the connection is closed
+ * </pre>
+ * 
+ * Connections are handled on threads of their own, at most
+ * {@link #MAX_CONNECTIONS} at once, and all requests code their blocks on one
+ * shared set of {@link BlockWorkers}, whose threads keep their match finder
+ * tables from one request to the next.
+ */
+class CompressionServer implements AutoCloseable {
+    static final byte COMPRESS = 'c';
+    static final byte DECOMPRESS = 'd';
+    static final int STATUS_OK = 0;
+    static final int STATUS_ERROR = 1;
+    static final int MAX_CONNECTIONS = 64; // each may buffer a block, so memory grows with the connections
 
-        System.out.printf("Decompressing block (%d B)...%n", blockLength);
-        byte[] decodeBuffer = new byte[Byte.SIZE];
-        HuffmanTree tree = new HuffmanTree(frequencies);
-        for (int i = 0; i < blockLength;) {
-            int bits = inputStream.read();
-            if (bits == -1) {
-                throw new IOException("Unexpected end of data.");
+    private final ServerSocketChannel serverChannel;
+    private final Path socketPath;
+    private final BlockWorkers workers;
+    private final Dictionary dictionary;
+    private final Semaphore connectionPermits = new Semaphore(MAX_CONNECTIONS);
+    // platform threads, as virtual threads need Java 21 and this runs on Java 17
+    private final ExecutorService connectionExecutor = Executors.newFixedThreadPool(MAX_CONNECTIONS, runnable -> {
+        Thread thread = new Thread(runnable, "XCompress connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param dictionary the dictionary to compress with and to decompress data
+     *                   compressed with it, may be null
+     */
+    public CompressionServer(String address, int threads, Dictionary dictionary) throws IOException {
+        SocketAddress socketAddress = parseAddress(address);
+        if (socketAddress instanceof UnixDomainSocketAddress) {
+            socketPath = ((UnixDomainSocketAddress) socketAddress).getPath();
+            // a socket file left behind by a server that did not shut down would fail the bind
+            Files.deleteIfExists(socketPath);
+            serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            socketPath = null;
+            serverChannel = ServerSocketChannel.open();
+        }
+        serverChannel.bind(socketAddress);
+        int maxPending = BlockContainer.BLOCKS_IN_FLIGHT_PER_THREAD;
+        this.workers = new BlockWorkers(threads, maxPending, threads * (maxPending + 1));
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * @return a localhost TCP address for a port number, else a Unix domain
+     *         socket address for a path
+     */
+    static SocketAddress parseAddress(String address) {
+        if (address.matches("[0-9]+")) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+        }
+        return UnixDomainSocketAddress.of(address);
+    }
+
+    static SocketChannel connect(String address) throws IOException {
+        return SocketChannel.open(parseAddress(address));
+    }
+
+    /**
+     * Streams over a socket channel that, unlike those of
+     * {@link java.nio.channels.Channels}, can be read and written from two
+     * threads at once.
+     */
+    static InputStream newInputStream(SocketChannel channel) {
+        return new BufferedInputStream(new InputStream() {
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
             }
-            int bytes = tree.decode((byte) bits, decodeBuffer);
-            for (int j = 0; j < bytes; j++) {
-                block[i++] = decodeBuffer[j];
-                if (i >= blockLength) {
-                    break;
+
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return length == 0 ? 0 : channel.read(ByteBuffer.wrap(buffer, offset, length));
+            }
+        });
+    }
+
+    static OutputStream newOutputStream(SocketChannel channel) {
+        return new BufferedOutputStream(new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+                while (data.hasRemaining()) {
+                    channel.write(data);
                 }
             }
+        });
+    }
+
+    /**
+     * Accepts connections until the server is closed.
+     */
+    public void serve() throws IOException {
+        while (serverChannel.isOpen()) {
+            // past the limit, new connections wait in the accept backlog until one closes
+            connectionPermits.acquireUninterruptibly();
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            }
+            connectionExecutor.execute(() -> {
+                try {
+                    handleConnection(channel);
+                } finally {
+                    connectionPermits.release();
+                }
+            });
         }
+    }
 
-        return blockLength;
+    private void handleConnection(SocketChannel channel) {
+        try (channel) {
+            InputStream inputStream = newInputStream(channel);
+            OutputStream outputStream = newOutputStream(channel);
+            int operation;
+            while ((operation = inputStream.read()) != -1) {
+                int level = inputStream.read();
+                int windowBits = inputStream.read();
+                FramedInputStream requestStream = new FramedInputStream(inputStream);
+                FramedOutputStream responseStream = new FramedOutputStream(outputStream);
+                try {
+                    handleRequest(operation, level, windowBits, requestStream, responseStream);
+                    requestStream.skipToEnd();
+                } catch (IOException | RuntimeException e) {
+                    // the rest of the request is not read, so the connection cannot go on
+                    responseStream.finish();
+                    outputStream.write(STATUS_ERROR);
+                    byte[] message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+                    VariableWidthEncoding.encode(message.length, outputStream);
+                    outputStream.write(message);
+                    outputStream.flush();
+                    return;
+                }
+                responseStream.finish();
+                outputStream.write(STATUS_OK);
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            // the client went away, nothing to answer
+        }
     }
 
-    public void decompress() throws IOException {
-        byte[] block = new byte[BLOCK_SIZE];
-        int length;
-        while (true) {
-            length = decompressBlock(block);
-            outputStream.write(block, 0, length);
+    private void handleRequest(int operation, int level, int windowBits, InputStream requestStream,
+            OutputStream responseStream) throws IOException {
+        if (level == -1 || windowBits == -1) {
+            throw new IOException("Unexpected end of data.");
+        }
+        CompressionLevel compressionLevel = level == 0 ? CompressionLevel.getDefault() : CompressionLevel.of(level);
+        if (windowBits != 0) {
+            compressionLevel = compressionLevel.withWindowSize(1 << Math.min(windowBits, Integer.SIZE - 2));
+        }
+        BlockContainer container = new BlockContainer(requestStream, responseStream, compressionLevel, workers,
+                StatisticsListener.NONE, dictionary);
+        if (operation == COMPRESS) {
+            container.compress();
+        } else if (operation == DECOMPRESS) {
+            container.decompress();
+        } else {
+            throw new IOException("Unknown operation " + operation + ".");
+        }
+    }
 
-            inputStream.mark(1);
-            if (inputStream.read() == -1) {
-                break;
-            }
-            inputStream.reset();
+    public void close() throws IOException {
+        serverChannel.close();
+        connectionExecutor.shutdownNow();
+        workers.close();
+        if (socketPath != null) {
+            Files.deleteIfExists(socketPath);
         }
-        outputStream.flush();
+    }
+}
+
+/**
+ * Sends requests to a {@link CompressionServer} over one connection.
+ */
+class CompressionClient implements AutoCloseable {
+    private final SocketChannel channel;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "XCompress client");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CompressionClient(String address) throws IOException {
+        this.channel = CompressionServer.connect(address);
+        this.inputStream = CompressionServer.newInputStream(channel);
+        this.outputStream = CompressionServer.newOutputStream(channel);
+    }
+
+    /**
+     * Sends input to be compressed, or decompressed, and writes the answer to
+     * output.
+     * 
+     * @param level      the compression level, 0 for the server's default
+     * @param windowBits the window bits, 0 for the default
+     */
+    public void request(byte operation, int level, int windowBits, InputStream input, OutputStream output)
+            throws IOException {
+        // the request is sent while the response is read, the server answers before it has read everything
+        Future<Void> sent = sender.submit(() -> {
+            outputStream.write(operation);
+            outputStream.write(level);
+            outputStream.write(windowBits);
+            FramedOutputStream requestStream = new FramedOutputStream(outputStream);
+            input.transferTo(requestStream);
+            requestStream.finish();
+            return null;
+        });
+
+        new FramedInputStream(inputStream).transferTo(output);
+        int status = inputStream.read();
+        if (status == CompressionServer.STATUS_ERROR) {
+            int length = VariableWidthEncoding.decode(inputStream);
+            sent.cancel(true);
+            throw new IOException(new String(inputStream.readNBytes(length), StandardCharsets.UTF_8));
+        } else if (status != CompressionServer.STATUS_OK) {
+            throw new IOException("Unexpected end of data.");
+        }
+        BlockContainer.await(sent);
+    }
+
+    public void close() throws IOException {
+        sender.shutdownNow();
+        channel.close();
     }
 }
 
 class XCompress {
+    static final String DEFAULT_SUFFIX = ".xcz";
+    static final String DECOMPRESSED_SUFFIX = ".out";
+    static final String STANDARD_STREAM = "-"; // stdin as source, stdout as target
+    static final int IO_CHUNK_SIZE = 1048576; // 1 MiB
+    static final int DEFAULT_IO_QUEUE_DEPTH = 2;
+    static final int MAX_IO_QUEUE_DEPTH = 64;
+    static final int MAX_THREADS = 256; // each keeps blocks in flight, so memory grows with the threads
+
+    private static class Options {
+        public CompressionLevel level = CompressionLevel.getDefault();
+        public int windowBits = -1;
+        public int threads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS);
+        public int ioQueueDepth = DEFAULT_IO_QUEUE_DEPTH;
+        public boolean mapped = false;
+        public boolean verbose = false;
+        public long rangeStart = -1;
+        public long rangeLength = -1;
+        public String dictionaryPath;
+        public int maxDictionarySize = -1;
+        public boolean batch = false;
+        public String suffix = DEFAULT_SUFFIX;
+        public String outputDirectory;
+        public String serverAddress;
+        public String[] paths;
+
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            int argIndex = 0;
+            for (; argIndex < args.length && args[argIndex].startsWith("-") && args[argIndex].length() > 1; argIndex++) {
+                String arg = args[argIndex];
+                if (arg.matches("-[0-9]+")) {
+                    int level = arg.length() <= 3 ? Integer.parseInt(arg.substring(1)) : -1;
+                    if (level < CompressionLevel.MIN_LEVEL || level > CompressionLevel.MAX_LEVEL) {
+                        return usageError("invalid level " + arg + ", expected -" + CompressionLevel.MIN_LEVEL
+                                + " ... -" + CompressionLevel.MAX_LEVEL + ".");
+                    }
+                    options.level = CompressionLevel.of(level);
+                } else if (arg.matches("-W[0-9]+")) {
+                    int minBits = Integer.numberOfTrailingZeros(LempelZivAlgorithm.MIN_WINDOW_SIZE);
+                    int maxBits = Integer.numberOfTrailingZeros(LempelZivAlgorithm.MAX_WINDOW_SIZE);
+                    options.windowBits = arg.length() <= 4 ? Integer.parseInt(arg.substring(2)) : -1;
+                    if (options.windowBits < minBits || options.windowBits > maxBits) {
+                        return usageError("invalid window " + arg + ", expected -W" + minBits + " ... -W" + maxBits
+                                + ". Blocks grow to twice the window, so -W" + maxBits + " means "
+                                + (LempelZivAlgorithm.MAX_WINDOW_SIZE * BlockContainer.WINDOWS_PER_BLOCK >> 20)
+                                + " MiB blocks, times the blocks in flight per thread.");
+                    }
+                } else if (arg.matches("-T[0-9]+")) {
+                    options.threads = arg.length() <= 5 ? Integer.parseInt(arg.substring(2)) : -1;
+                    if (options.threads < 1 || options.threads > MAX_THREADS) {
+                        return usageError("invalid thread count " + arg + ", expected -T1 ... -T" + MAX_THREADS + ".");
+                    }
+                } else if (arg.matches("-Q[0-9]+")) {
+                    options.ioQueueDepth = arg.length() <= 4 ? Integer.parseInt(arg.substring(2)) : -1;
+                    if (options.ioQueueDepth < 0 || options.ioQueueDepth > MAX_IO_QUEUE_DEPTH) {
+                        return usageError(
+                                "invalid I/O queue depth " + arg + ", expected -Q0 ... -Q" + MAX_IO_QUEUE_DEPTH + ".");
+                    }
+                } else if (arg.equals("-m") || arg.equals("--mmap")) {
+                    options.mapped = true;
+                } else if (arg.equals("-v") || arg.equals("--stats")) {
+                    options.verbose = true;
+                } else if (arg.equals("--range")) {
+                    if (argIndex + 1 == args.length) {
+                        return usageError("missing range, expected --range <start>:<length>.");
+                    }
+                    String value = args[++argIndex];
+                    // up to 18 digits fit in a long
+                    if (!value.matches("[0-9]{1,18}:[0-9]{1,18}")) {
+                        return usageError("invalid range " + value + ", expected <start>:<length>.");
+                    }
+                    String[] range = value.split(":");
+                    options.rangeStart = Long.parseLong(range[0]);
+                    options.rangeLength = Long.parseLong(range[1]);
+                } else if (arg.equals("--server") && argIndex + 1 < args.length) {
+                    options.serverAddress = args[++argIndex];
+                } else if (arg.equals("--batch")) {
+                    options.batch = true;
+                } else if (arg.equals("--suffix") && argIndex + 1 < args.length) {
+                    options.suffix = args[++argIndex];
+                } else if (arg.equals("--outdir") && argIndex + 1 < args.length) {
+                    options.outputDirectory = args[++argIndex];
+                } else if (arg.equals("--dict") && argIndex + 1 < args.length) {
+                    options.dictionaryPath = args[++argIndex];
+                } else if (arg.equals("--maxdict")) {
+                    String value = argIndex + 1 < args.length ? args[++argIndex] : "";
+                    // up to 9 digits fit in an int
+                    options.maxDictionarySize = value.matches("[0-9]{1,9}") ? Integer.parseInt(value) : -1;
+                    if (options.maxDictionarySize < 0 || options.maxDictionarySize > Dictionary.MAX_CONTENT_SIZE) {
+                        return usageError("invalid dictionary size " + value + ", expected 0 ... "
+                                + Dictionary.MAX_CONTENT_SIZE + " bytes.");
+                    }
+                } else {
+                    return usageError("unknown option " + arg + ", see -h.");
+                }
+            }
+            options.paths = Arrays.copyOfRange(args, argIndex, args.length);
+            if (options.windowBits >= 0) {
+                options.level = options.level.withWindowSize(1 << options.windowBits);
+            }
+            return options;
+        }
+
+        /**
+         * Prints what is wrong with the arguments.
+         * 
+         * @return null, which the commands take as a reason to stop
+         */
+        private static Options usageError(String message) {
+            System.out.println(message);
+            return null;
+        }
+    }
+
     public static void compress(String[] args) throws IOException {
-        if (args.length < 2) {
+        Options options = Options.parse(args);
+        if (options == null) {
+            return;
+        }
+        if (options.batch) {
+            runBatch(options, true);
+            return;
+        }
+        if (options.paths.length < 2) {
             System.out.println("two file paths must be provided.");
             return;
         }
+        if (options.serverAddress != null) {
+            requestFromServer(options, CompressionServer.COMPRESS);
+            return;
+        }
 
-        try (FileInputStream inputStream = new FileInputStream(args[0]);
-                FileOutputStream outputStream = new FileOutputStream(args[1]);) {
-            ByteArrayOutputStream lzOutputStream = new ByteArrayOutputStream();
-            new LempelZivAlgorithm(inputStream, lzOutputStream).compress();
-            ByteArrayInputStream huffmanInputStream = new ByteArrayInputStream(lzOutputStream.toByteArray());
-            new HuffmanAlgorithm(huffmanInputStream, outputStream).compress();
+        Dictionary dictionary = readDictionary(options);
+        Statistics total = new Statistics();
+        StatisticsListener listener = createListener(options, total);
+        try (BlockWorkers workers = BlockWorkers.forContainer(options.threads)) {
+            compressFile(options, Path.of(options.paths[0]), Path.of(options.paths[1]), workers, listener, dictionary);
+        }
+        if (options.verbose) {
+            total.print(System.err);
         }
     }
 
     public static void decompress(String[] args) throws IOException {
-        if (args.length < 2) {
+        Options options = Options.parse(args);
+        if (options == null) {
+            return;
+        }
+        if (options.batch) {
+            runBatch(options, false);
+            return;
+        }
+        if (options.paths.length < 2) {
             System.out.println("two file paths must be provided.");
             return;
         }
+        if (options.serverAddress != null) {
+            requestFromServer(options, CompressionServer.DECOMPRESS);
+            return;
+        }
+
+        Dictionary dictionary = readDictionary(options);
+        Statistics total = new Statistics();
+        StatisticsListener listener = createListener(options, total);
+        try (BlockWorkers workers = BlockWorkers.forContainer(options.threads)) {
+            decompressFile(options, Path.of(options.paths[0]), Path.of(options.paths[1]), workers, listener,
+                    dictionary);
+        }
+        if (options.verbose) {
+            total.print(System.err);
+        }
+    }
+
+    /**
+     * Has a server started with -s do the work, with the level and window
+     * given in the options and the server's dictionary.
+     */
+    private static void requestFromServer(Options options, byte operation) throws IOException {
+        try (CompressionClient client = new CompressionClient(options.serverAddress);
+                InputStream inputStream = openInput(Path.of(options.paths[0]));
+                OutputStream outputStream = new BufferedOutputStream(openOutput(Path.of(options.paths[1])));) {
+            int windowBits = options.windowBits >= 0 ? options.windowBits : 0;
+            client.request(operation, options.level.getLevel(), windowBits, inputStream, outputStream);
+        }
+    }
+
+    public static void serve(String[] args) throws IOException {
+        Options options = Options.parse(args);
+        if (options == null) {
+            return;
+        }
+        if (options.paths.length < 1) {
+            System.out.println("a port or socket path must be provided.");
+            return;
+        }
+
+        // not in try-with-resources, the shutdown hook closes it as well
+        CompressionServer server = new CompressionServer(options.paths[0], options.threads, readDictionary(options));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // exiting anyway
+            }
+        }));
+        try {
+            server.serve();
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void compressFile(Options options, Path source, Path target, BlockWorkers workers,
+            StatisticsListener listener, Dictionary dictionary) throws IOException {
+        if (options.mapped && !isStandardStream(source) && !isStandardStream(target)) {
+            try (FileChannel inputChannel = openInputChannel(source);
+                    FileChannel outputChannel = openOutputChannel(target);) {
+                new MappedBlockContainer(inputChannel, outputChannel, options.level, workers, listener, dictionary)
+                        .compress();
+            }
+        } else {
+            try (InputStream inputStream = openInput(source, options);
+                    OutputStream outputStream = openOutput(target, options);) {
+                new BlockContainer(inputStream, outputStream, options.level, workers, listener, dictionary)
+                        .compress();
+            }
+        }
+    }
+
+    private static void decompressFile(Options options, Path source, Path target, BlockWorkers workers,
+            StatisticsListener listener, Dictionary dictionary) throws IOException {
+        if (options.rangeStart >= 0) {
+            // ranges need random access to the input, so they always go through channels
+            if (isStandardStream(source) || isStandardStream(target)) {
+                throw new IOException("--range needs files, not " + STANDARD_STREAM + ".");
+            }
+            try (FileChannel inputChannel = openInputChannel(source);
+                    FileChannel outputChannel = openOutputChannel(target);) {
+                new MappedBlockContainer(inputChannel, outputChannel, options.level, workers, listener, dictionary)
+                        .decompressRange(options.rangeStart, options.rangeLength);
+            }
+        } else if (options.mapped && !isStandardStream(source) && !isStandardStream(target)) {
+            try (FileChannel inputChannel = openInputChannel(source);
+                    FileChannel outputChannel = openOutputChannel(target);) {
+                new MappedBlockContainer(inputChannel, outputChannel, options.level, workers, listener, dictionary)
+                        .decompress();
+            }
+        } else {
+            try (InputStream inputStream = openInput(source, options);
+                    OutputStream outputStream = openOutput(target, options);) {
+                new BlockContainer(inputStream, outputStream, options.level, workers, listener, dictionary)
+                        .decompress();
+            }
+        }
+    }
+
+    private static class BatchFile {
+        public final Path source;
+        public final Path target;
+
+        public BatchFile(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+    }
+
+    /**
+     * @param name the path of the file relative to the output directory
+     */
+    private static void addBatchFile(Options options, boolean compress, Path source, Path name,
+            List<BatchFile> files) {
+        String fileName = name.getFileName().toString();
+        String targetName;
+        if (compress) {
+            targetName = fileName + options.suffix;
+        } else if (fileName.endsWith(options.suffix) && fileName.length() > options.suffix.length()) {
+            targetName = fileName.substring(0, fileName.length() - options.suffix.length());
+        } else {
+            targetName = fileName + DECOMPRESSED_SUFFIX;
+        }
+        Path target = options.outputDirectory != null ? Path.of(options.outputDirectory).resolve(name)
+                : source;
+        files.add(new BatchFile(source, target.resolveSibling(targetName)));
+    }
+
+    /**
+     * Lists the files named by path: a file, a directory, whose files are taken
+     * recursively, or a manifest, given as @file, listing one path per line.
+     * In directories only the files not yet compressed, respectively the
+     * compressed ones, are taken.
+     */
+    private static void collectBatchFiles(Options options, boolean compress, String path, List<BatchFile> files)
+            throws IOException {
+        if (path.startsWith("@")) {
+            for (String line : Files.readAllLines(Path.of(path.substring(1)))) {
+                if (!line.isBlank()) {
+                    collectBatchFiles(options, compress, line.strip(), files);
+                }
+            }
+            return;
+        }
+
+        Path root = Path.of(path);
+        if (!Files.isDirectory(root)) {
+            addBatchFile(options, compress, root, root.getFileName(), files);
+            return;
+        }
+        List<Path> sources;
+        try (Stream<Path> walk = Files.walk(root)) {
+            sources = walk.filter(Files::isRegularFile)
+                    .filter(source -> source.getFileName().toString().endsWith(options.suffix) != compress)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (Path source : sources) {
+            addBatchFile(options, compress, source, root.relativize(source), files);
+        }
+    }
+
+    /**
+     * Compresses or decompresses every file given by the paths, see
+     * {@link #collectBatchFiles}, in one process. Files are processed on
+     * options.threads threads at once, and their blocks are coded on one shared
+     * set of workers, each file keeping only a few blocks in flight so that
+     * memory stays bounded as for a single file. A file that fails is reported
+     * and the others are still processed.
+     */
+    private static void runBatch(Options options, boolean compress) throws IOException {
+        if (options.rangeStart >= 0) {
+            System.out.println("--range cannot be used with --batch.");
+            return;
+        }
+        List<BatchFile> files = new ArrayList<>();
+        for (String path : options.paths) {
+            collectBatchFiles(options, compress, path, files);
+        }
+        Dictionary dictionary = readDictionary(options);
+
+        Statistics total = new Statistics();
+        int failures = 0;
+        int maxPending = BlockContainer.BLOCKS_IN_FLIGHT_PER_THREAD;
+        ExecutorService executor = Executors.newFixedThreadPool(options.threads);
+        try (BlockWorkers workers = new BlockWorkers(options.threads, maxPending,
+                options.threads * (maxPending + 1))) {
+            List<Future<Statistics>> results = new ArrayList<>();
+            for (BatchFile file : files) {
+                results.add(executor.submit(() -> {
+                    // the listener is called on this file's thread only
+                    Statistics statistics = new Statistics();
+                    StatisticsListener listener = (blockIndex, block) -> statistics.add(block);
+                    if (file.target.getParent() != null) {
+                        Files.createDirectories(file.target.getParent());
+                    }
+                    if (compress) {
+                        compressFile(options, file.source, file.target, workers, listener, dictionary);
+                    } else {
+                        decompressFile(options, file.source, file.target, workers, listener, dictionary);
+                    }
+                    return statistics;
+                }));
+            }
+
+            for (int i = 0; i < files.size(); i++) {
+                BatchFile file = files.get(i);
+                try {
+                    Statistics statistics = BlockContainer.await(results.get(i));
+                    total.add(statistics);
+                    if (options.verbose) {
+                        System.err.printf("%s -> %s: %d B <-> %d B%n", file.source, file.target,
+                                statistics.lzInputBytes, statistics.huffmanOutputBytes);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failures++;
+                    System.err.println(file.source + ": " + e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (options.verbose) {
+            System.err.printf("%d files%n", files.size());
+            total.print(System.err);
+        }
+        if (failures > 0) {
+            throw new IOException(failures + " of " + files.size() + " files failed.");
+        }
+    }
+
+    public static void train(String[] args) throws IOException {
+        Options options = Options.parse(args);
+        if (options == null) {
+            return;
+        }
+        if (options.paths.length < 2) {
+            System.out.println("a dictionary path and at least one sample path must be provided.");
+            return;
+        }
+
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 1; i < options.paths.length; i++) {
+            samples.add(Files.readAllBytes(Path.of(options.paths[i])));
+        }
+        int maxSize = options.maxDictionarySize >= 0 ? options.maxDictionarySize : options.level.getWindowSize();
+        Dictionary dictionary = new DictionaryTrainer(options.level, maxSize).train(samples);
+        try (FileOutputStream outputStream = new FileOutputStream(options.paths[0])) {
+            dictionary.write(outputStream);
+        }
+        if (options.verbose) {
+            System.err.printf("dictionary %d: %d B of content from %d samples%n", dictionary.getId(),
+                    dictionary.getContent().length, samples.size());
+        }
+    }
+
+    private static Dictionary readDictionary(Options options) throws IOException {
+        if (options.dictionaryPath == null) {
+            return null;
+        }
+        try (FileInputStream inputStream = new FileInputStream(options.dictionaryPath)) {
+            return Dictionary.read(new BufferedInputStream(inputStream));
+        }
+    }
+
+    private static StatisticsListener createListener(Options options, Statistics total) {
+        if (!options.verbose) {
+            return StatisticsListener.NONE;
+        }
+        return (blockIndex, statistics) -> {
+            statistics.printBlock(System.err, blockIndex);
+            total.add(statistics);
+        };
+    }
+
+    private static boolean isStandardStream(Path path) {
+        return path.toString().equals(STANDARD_STREAM);
+    }
+
+    /**
+     * Like {@link #openInput(Path)}, but read ahead as the options say.
+     */
+    private static InputStream openInput(Path path, Options options) throws IOException {
+        InputStream inputStream = openInput(path);
+        if (options.ioQueueDepth == 0) {
+            return inputStream;
+        }
+        return new ReadAheadInputStream(inputStream, IO_CHUNK_SIZE, options.ioQueueDepth);
+    }
+
+    /**
+     * Like {@link #openOutput(Path)}, but written behind as the options say.
+     */
+    private static OutputStream openOutput(Path path, Options options) throws IOException {
+        OutputStream outputStream = openOutput(path);
+        if (options.ioQueueDepth == 0) {
+            return outputStream;
+        }
+        return new WriteBehindOutputStream(outputStream, IO_CHUNK_SIZE, options.ioQueueDepth);
+    }
+
+    /**
+     * @return the file, or stdin for {@link #STANDARD_STREAM}, which closing
+     *         the stream leaves open
+     */
+    private static InputStream openInput(Path path) throws IOException {
+        if (!isStandardStream(path)) {
+            return Files.newInputStream(path);
+        }
+        return new FilterInputStream(new FileInputStream(FileDescriptor.in)) {
+            public void close() {
+            }
+        };
+    }
 
-        try (FileInputStream inputStream = new FileInputStream(args[0]);
-                FileOutputStream outputStream = new FileOutputStream(args[1]);) {
-            ByteArrayOutputStream huffmanOutputStream = new ByteArrayOutputStream();
-            new HuffmanAlgorithm(inputStream, huffmanOutputStream).decompress();
-            ByteArrayInputStream lzInputstream = new ByteArrayInputStream(huffmanOutputStream.toByteArray());
-            new LempelZivAlgorithm(lzInputstream, outputStream).decompress();
+    /**
+     * @return the file, or stdout for {@link #STANDARD_STREAM}, which closing
+     *         the stream only flushes
+     */
+    private static OutputStream openOutput(Path path) throws IOException {
+        if (!isStandardStream(path)) {
+            return Files.newOutputStream(path);
         }
+        return new FilterOutputStream(new FileOutputStream(FileDescriptor.out)) {
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+            }
+
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    private static FileChannel openInputChannel(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    private static FileChannel openOutputChannel(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
     }
 
     public static void printHelp() {
@@ -800,10 +4878,47 @@ class XCompress {
             "Flags:\n" +
             " -c: compress file\n" +
             " -d: decompress file\n" +
+            " -t: train a dictionary, the first path is the dictionary file, the others are samples\n" +
+            " -s: serve -c and -d requests on a localhost TCP port or a Unix domain socket path, until killed\n" +
             " -h: show this help\n" +
             "\n" +
+            "Compression options (after -c):\n" +
+            " -1 ... -9: compression level, -1 is fastest, -9 compresses best (default -" + CompressionLevel.DEFAULT_LEVEL + ")\n" +
+            " -W<n>: let matches reach back 2^n bytes, n from 15 (default) to 24, blocks grow to twice the window\n" +
+            "\n" +
+            "Options for both -c and -d:\n" +
+            " -T<n>: process blocks on n threads, at most " + MAX_THREADS + " (default: number of processors)\n" +
+            " -Q<n>: read up to n MiB ahead and write up to n MiB behind on I/O threads, 0 for none,\n" +
+            "        at most " + MAX_IO_QUEUE_DEPTH + " (default " + DEFAULT_IO_QUEUE_DEPTH + ")\n" +
+            " -m, --mmap: read the source file through memory mapping and write the target with positional writes\n" +
+            " -v, --stats: print statistics for each block and the whole file to stderr\n" +
+            " --dict <file>: compress with a dictionary trained by -t, data compressed with one needs it to decompress\n" +
+            " --batch: process many files in one run, each path being a file, a directory whose files are taken\n" +
+            "          recursively, or @manifest, a file listing one such path per line; -T<n> files at a time\n" +
+            " --suffix <s>: with --batch, the suffix of compressed files (default " + DEFAULT_SUFFIX + "), removed when\n" +
+            "               decompressing, or else " + DECOMPRESSED_SUFFIX + " is appended\n" +
+            " --outdir <dir>: with --batch, write the output files to dir instead of next to the sources\n" +
+            " --server <port or path>: have a server started with -s do the work, using the server's dictionary\n" +
+            "A source or target path of " + STANDARD_STREAM + " stands for stdin or stdout, e.g. to use XCompress in a pipeline.\n" +
+            "\n" +
+            "Training options (after -t), along with -1 ... -9 and -W<n> which should match those used with -c:\n" +
+            " --maxdict <n>: make the dictionary at most n bytes, up to " + Dictionary.MAX_CONTENT_SIZE + " (default: the window size)\n" +
+            "\n" +
+            "Decompression options (after -d):\n" +
+            " --range <start>:<length>: only write length bytes from offset start of the decompressed file,\n" +
+            "                           decoding just the blocks that hold them\n" +
+            "\n" +
             "E.g. java XCompress -c uncompressed_file compressed_file\n" +
-            "     java XCompress -d compressed_file decompressed_file"
+            "     java XCompress -c -9 uncompressed_file compressed_file\n" +
+            "     java XCompress -c -W24 uncompressed_file compressed_file\n" +
+            "     java XCompress -d compressed_file decompressed_file\n" +
+            "     java XCompress -d --range 1048576:4096 compressed_file part_of_file\n" +
+            "     tar c directory | java XCompress -c - - | ssh host 'java XCompress -d - - | tar x'\n" +
+            "     java XCompress -c --batch --outdir compressed_dir uncompressed_dir @more_files.txt\n" +
+            "     java XCompress -t dictionary_file sample_file...\n" +
+            "     java XCompress -s -T4 /tmp/xcompress.sock\n" +
+            "     java XCompress -c --server /tmp/xcompress.sock uncompressed_file compressed_file\n" +
+            "     java XCompress -c --dict dictionary_file uncompressed_file compressed_file"
         );
     }
 
@@ -816,6 +4931,12 @@ class XCompress {
         case "-d":
             decompress(Arrays.copyOfRange(args, 1, args.length));
             break;
+        case "-t":
+            train(Arrays.copyOfRange(args, 1, args.length));
+            break;
+        case "-s":
+            serve(Arrays.copyOfRange(args, 1, args.length));
+            break;
         case "-h":
             printHelp();
             break;
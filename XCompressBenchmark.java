@@ -0,0 +1,313 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Throughput benchmarks for every stage of the codec over synthetic corpora
+ * that are generated from fixed seeds, so runs are comparable between commits.
+ *
+ * Each benchmark is warmed up and then measured over several iterations; the
+ * report gives the median throughput in MB/s of uncompressed data, the
+ * output/input ratio of the stage and the bytes allocated by the benchmark
+ * thread per uncompressed byte.
+ *
+ * The stages are package-private classes of XCompress.java, so this is
+ * compiled with -Xlint:all,-auxiliaryclass, see bench.sh.
+ */
+class XCompressBenchmark {
+    private static final int CORPUS_SIZE = 4194304; // 4 MiB, one container block
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long SEED = 0x5EED;
+
+    private interface Stage {
+        /**
+         * Runs the stage once over the corpus.
+         *
+         * @return the size of what the stage produced, bytes or for the match
+         *         finder the number of literals and matches
+         */
+        long run() throws IOException;
+    }
+
+    /**
+     * Keeps the tokens the parser chooses, so that the token coder can be
+     * timed without the parser. Costs are those of {@link TokenEncoder}.
+     */
+    private static class TokenRecorder implements TokenSink {
+        private final TokenEncoder encoder = new TokenEncoder(OutputStream.nullOutputStream());
+        private long[] tokens = new long[1024]; // literals are stored as matches of distance 0
+        private int tokenCount = 0;
+        private boolean lastWasMatch = false;
+
+        public int getMinMatchLength() {
+            return encoder.getMinMatchLength();
+        }
+
+        public int getLiteralCost() {
+            return encoder.getLiteralCost();
+        }
+
+        public int getMatchCost(int distance, int length) {
+            return encoder.getMatchCost(distance, length);
+        }
+
+        public int getSwitchCost() {
+            return encoder.getSwitchCost();
+        }
+
+        public boolean isLastEntryMatch() {
+            return lastWasMatch;
+        }
+
+        public void writeByte(byte b) {
+            lastWasMatch = false;
+            add(Match.of(0, b & 0xFF));
+        }
+
+        public void writeMatch(long match) {
+            lastWasMatch = true;
+            add(match);
+        }
+
+        private void add(long token) {
+            if (tokenCount == tokens.length) {
+                tokens = Arrays.copyOf(tokens, tokens.length * 2);
+            }
+            tokens[tokenCount++] = token;
+        }
+
+        public void finish() {
+        }
+
+        public void addStatistics(Statistics statistics) {
+        }
+
+        /**
+         * Codes the recorded tokens with tANS or Huffman codes, in one stream
+         * or split, see {@link TokenEncoder#forceCodes(boolean)}.
+         */
+        public byte[] encode(boolean tans, boolean split) throws IOException {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(tokenCount);
+            TokenEncoder tokenEncoder = new TokenEncoder(outputStream);
+            tokenEncoder.forceCodes(tans);
+            tokenEncoder.forceSplitStreams(split);
+            for (int i = 0; i < tokenCount; i++) {
+                if (Match.getDistance(tokens[i]) == 0) {
+                    tokenEncoder.writeByte((byte) Match.getLength(tokens[i]));
+                } else {
+                    tokenEncoder.writeMatch(tokens[i]);
+                }
+            }
+            tokenEncoder.finish();
+            return outputStream.toByteArray();
+        }
+    }
+
+    private static class Corpus {
+        public final String name;
+        public final byte[] data;
+        public final byte[] blockData;
+        public final TokenRecorder tokens = new TokenRecorder();
+
+        public Corpus(String name, byte[] data, CompressionLevel level) throws IOException {
+            this.name = name;
+            this.data = data;
+            this.blockData = BlockContainer.compressBlock(ByteBuffer.wrap(data), level).data;
+            new LempelZivAlgorithm(level).compress(ByteBuffer.wrap(data), tokens);
+        }
+    }
+
+    private static final String[] WORDS = { "the", "of", "and", "to", "in", "a", "is", "that", "for", "it", "as",
+            "was", "with", "be", "by", "on", "not", "he", "this", "are", "or", "his", "from", "at", "which", "but",
+            "have", "an", "had", "they", "you", "were", "their", "one", "all", "we", "can", "her", "has", "there",
+            "been", "if", "more", "when", "will", "would", "who", "so", "no", "compression", "window", "match",
+            "literal", "huffman", "distance", "length", "symbol", "block", "stream", "buffer", "table" };
+
+    private static byte[] textCorpus(Random random) {
+        byte[] data = new byte[CORPUS_SIZE];
+        int index = 0;
+        int wordsInSentence = 0;
+        while (index < data.length) {
+            // squaring the uniform value skews the distribution towards frequent words
+            double skew = random.nextDouble();
+            String word = WORDS[(int) (skew * skew * WORDS.length)];
+            if (wordsInSentence == 0) {
+                word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+            }
+            for (int i = 0; i < word.length() && index < data.length; i++) {
+                data[index++] = (byte) word.charAt(i);
+            }
+            wordsInSentence++;
+            String separator = " ";
+            if (wordsInSentence > 6 + random.nextInt(12)) {
+                separator = random.nextInt(5) == 0 ? ".\n" : ". ";
+                wordsInSentence = 0;
+            }
+            for (int i = 0; i < separator.length() && index < data.length; i++) {
+                data[index++] = (byte) separator.charAt(i);
+            }
+        }
+        return data;
+    }
+
+    private static byte[] binaryCorpus(Random random) {
+        // fixed-size records with a counter, a slowly changing timestamp, a small enum and a float
+        ByteBuffer buffer = ByteBuffer.allocate(CORPUS_SIZE);
+        long timestamp = 1_600_000_000_000L;
+        for (int id = 0; buffer.remaining() >= 24; id++) {
+            timestamp += random.nextInt(1000);
+            buffer.putInt(id);
+            buffer.putLong(timestamp);
+            buffer.putShort((short) random.nextInt(8));
+            buffer.putShort((short) 0);
+            buffer.putFloat((float) random.nextGaussian() * 100);
+            buffer.putInt(random.nextInt(16) == 0 ? random.nextInt() : 0);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] randomCorpus(Random random) {
+        byte[] data = new byte[CORPUS_SIZE];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] repetitiveCorpus(Random random) {
+        byte[] pattern = new byte[1000];
+        random.nextBytes(pattern);
+        byte[] data = new byte[CORPUS_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = pattern[i % pattern.length];
+        }
+        for (int i = 0; i < data.length / 10000; i++) {
+            data[random.nextInt(data.length)] = (byte) random.nextInt();
+        }
+        return data;
+    }
+
+    private static byte[] compressedCorpus(Random random) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(CORPUS_SIZE);
+        byte[] buffer = new byte[65536];
+        while (outputStream.size() < CORPUS_SIZE) {
+            deflater.setInput(textCorpus(random));
+            while (!deflater.needsInput()) {
+                outputStream.write(buffer, 0, deflater.deflate(buffer));
+            }
+        }
+        deflater.end();
+        return Arrays.copyOf(outputStream.toByteArray(), CORPUS_SIZE);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    private static void measure(PrintStream report, String stage, Corpus corpus, long inputLength, Stage run)
+            throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            run.run();
+        }
+
+        double[] megabytesPerSecond = new double[MEASURED_ITERATIONS];
+        long outputLength = 0;
+        long allocated = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            outputLength = run.run();
+            long elapsed = System.nanoTime() - start;
+            allocated += allocatedBytes() - allocatedBefore;
+            megabytesPerSecond[i] = corpus.data.length / 1e6 / (elapsed / 1e9);
+        }
+        Arrays.sort(megabytesPerSecond);
+
+        report.printf("%-16s %-12s %10.1f %8.3f %10.2f%n", stage, corpus.name,
+                megabytesPerSecond[MEASURED_ITERATIONS / 2], (double) outputLength / inputLength,
+                (double) allocated / MEASURED_ITERATIONS / corpus.data.length);
+    }
+
+    private static void benchmark(PrintStream report, Corpus corpus, CompressionLevel level) throws IOException {
+        measure(report, "findMatch", corpus, corpus.data.length, () -> {
+            SlidingWindow window = new SlidingWindow(new ByteBufferWindow(ByteBuffer.wrap(corpus.data)),
+                    LempelZivAlgorithm.WINDOW_SIZE, LempelZivAlgorithm.LOOKAHEAD_SIZE,
+                    TokenEncoder.MIN_MATCH_LENGTH, level.getMaxChainDepth(), level.getNiceLength());
+            long entries = 0;
+            for (int i = 0; i < corpus.data.length;) {
+                window.setDivider(i);
+                long match = window.findMatch();
+                entries++;
+                i += match == Match.NONE ? 1 : Match.getLength(match);
+            }
+            return entries;
+        });
+
+        measure(report, "huffman.tree", corpus, corpus.data.length, () -> {
+            HuffmanFrequencies frequencies = new HuffmanFrequencies();
+            for (byte b : corpus.data) {
+                frequencies.increment(b);
+            }
+            return new HuffmanTree(frequencies).getEncodedBits(frequencies) / 8;
+        });
+
+        // each way the token coder can code a block, Huffman or tANS, in one stream or split
+        byte[] decoded = new byte[corpus.data.length];
+        for (boolean tans : new boolean[] { false, true }) {
+            for (boolean split : new boolean[] { false, true }) {
+                String coding = (tans ? "tans" : "huffman") + (split ? TokenEncoder.STREAMS : 1);
+                measure(report, "encode." + coding, corpus, corpus.data.length,
+                        () -> corpus.tokens.encode(tans, split).length);
+
+                byte[] encoded = corpus.tokens.encode(tans, split);
+                TokenDecoder.decode(encoded, decoded, new Statistics());
+                if (!Arrays.equals(decoded, corpus.data)) {
+                    throw new IOException("Token coding " + coding + " of " + corpus.name + " changed the data.");
+                }
+                measure(report, "decode." + coding, corpus, encoded.length, () -> {
+                    TokenDecoder.decode(encoded, decoded, new Statistics());
+                    return decoded.length;
+                });
+            }
+        }
+
+        measure(report, "block.decomp", corpus, corpus.blockData.length,
+                () -> BlockContainer.decompressBlock(corpus.blockData, corpus.data.length).data.length);
+
+        measure(report, "roundTrip", corpus, corpus.data.length, () -> {
+            byte[] data = BlockContainer.compressBlock(ByteBuffer.wrap(corpus.data), level).data;
+            byte[] block = BlockContainer.decompressBlock(data, corpus.data.length).data;
+            if (!Arrays.equals(block, corpus.data)) {
+                throw new IOException("Round trip of " + corpus.name + " changed the data.");
+            }
+            return data.length;
+        });
+    }
+
+    public static void main(String[] args) throws IOException {
+        CompressionLevel level = args.length > 0 ? CompressionLevel.of(Integer.parseInt(args[0]))
+                : CompressionLevel.getDefault();
+
+        PrintStream report = System.out;
+
+        Map<String, byte[]> corpora = new LinkedHashMap<>();
+        corpora.put("text", textCorpus(new Random(SEED)));
+        corpora.put("binary", binaryCorpus(new Random(SEED)));
+        corpora.put("random", randomCorpus(new Random(SEED)));
+        corpora.put("repetitive", repetitiveCorpus(new Random(SEED)));
+        corpora.put("compressed", compressedCorpus(new Random(SEED)));
+
+        report.printf("%-16s %-12s %10s %8s %10s%n", "stage", "corpus", "MB/s", "ratio", "alloc B/B");
+        for (Map.Entry<String, byte[]> entry : corpora.entrySet()) {
+            benchmark(report, new Corpus(entry.getKey(), entry.getValue(), level), level);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load test for a server started with {@code XCompress -s}: several clients,
+ * each on its own connection, send compress requests one after the other and
+ * check that decompressing the answer gives back the payload. The report gives
+ * the request rate and the latency percentiles of the compress requests.
+ *
+ * Usage: java XCompressLoadTest address [clients] [requests per client] [payload files...]
+ *
+ * Without payload files a few KB of generated JSON records are sent, the kind
+ * of small payload the server is meant for.
+ *
+ * The client and server are package-private classes of XCompress.java, so
+ * this is compiled with -Xlint:all,-auxiliaryclass, see loadtest.sh.
+ */
+class XCompressLoadTest {
+    private static final int DEFAULT_CLIENTS = 8;
+    private static final int DEFAULT_REQUESTS = 1000;
+    private static final int WARMUP_REQUESTS = 100;
+    private static final long SEED = 0x5EED;
+
+    private static byte[] jsonPayload(Random random) {
+        StringBuilder builder = new StringBuilder("[");
+        String[] levels = { "INFO", "WARN", "ERROR", "DEBUG" };
+        String[] services = { "auth-service", "billing-service", "gateway" };
+        for (int i = 0; i < 24; i++) {
+            builder.append(i == 0 ? "\n" : ",\n");
+            builder.append(String.format(
+                    "  {\"timestamp\": \"2026-10-%02dT%02d:%02d:%02dZ\", \"level\": \"%s\", \"service\": \"%s\", "
+                            + "\"user\": {\"id\": %d}, \"latency_ms\": %d}",
+                    1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60),
+                    levels[random.nextInt(levels.length)], services[random.nextInt(services.length)],
+                    random.nextInt(100000), random.nextInt(1000)));
+        }
+        return builder.append("\n]\n").toString().getBytes();
+    }
+
+    /**
+     * @return the latency in nanoseconds of each measured compress request
+     */
+    private static long[] runClient(String address, int requests, List<byte[]> payloads, int clientIndex)
+            throws IOException {
+        long[] latencies = new long[requests];
+        try (CompressionClient client = new CompressionClient(address)) {
+            for (int i = -WARMUP_REQUESTS; i < requests; i++) {
+                byte[] payload = payloads.get(Math.floorMod(clientIndex + i, payloads.size()));
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                long start = System.nanoTime();
+                client.request(CompressionServer.COMPRESS, 0, 0, new ByteArrayInputStream(payload), compressed);
+                long elapsed = System.nanoTime() - start;
+
+                ByteArrayOutputStream decompressed = new ByteArrayOutputStream(payload.length);
+                client.request(CompressionServer.DECOMPRESS, 0, 0, new ByteArrayInputStream(compressed.toByteArray()),
+                        decompressed);
+                if (!Arrays.equals(decompressed.toByteArray(), payload)) {
+                    throw new IOException("Round trip through the server changed the data.");
+                }
+                if (i >= 0) {
+                    latencies[i] = elapsed;
+                }
+            }
+        }
+        return latencies;
+    }
+
+    private static double percentileMillis(long[] sortedLatencies, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(index, 0)] / 1e6;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: java XCompressLoadTest address [clients] [requests per client] [payload files...]");
+            return;
+        }
+        String address = args[0];
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CLIENTS;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_REQUESTS;
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            payloads.add(Files.readAllBytes(Path.of(args[i])));
+        }
+        if (payloads.isEmpty()) {
+            Random random = new Random(SEED);
+            for (int i = 0; i < 16; i++) {
+                payloads.add(jsonPayload(random));
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        long[] latencies = new long[clients * requests];
+        long start = System.nanoTime();
+        try {
+            List<Future<long[]>> results = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                int clientIndex = c;
+                results.add(executor.submit(() -> runClient(address, requests, payloads, clientIndex)));
+            }
+            for (int c = 0; c < clients; c++) {
+                System.arraycopy(BlockContainer.await(results.get(c)), 0, latencies, c * requests, requests);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+
+        PrintStream report = System.out;
+        long payloadBytes = 0;
+        for (byte[] payload : payloads) {
+            payloadBytes += payload.length;
+        }
+        report.printf("%d clients x %d requests, payloads of %d B on average%n", clients, requests,
+                payloadBytes / payloads.size());
+        // every measured request is followed by its decompression, and warm-up requests are included
+        report.printf("%.0f round trips/s%n", clients * (requests + WARMUP_REQUESTS) / (elapsed / 1e9));
+        report.printf("compress latency: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                percentileMillis(latencies, 50), percentileMillis(latencies, 90), percentileMillis(latencies, 99),
+                latencies[latencies.length - 1] / 1e6);
+    }
+}
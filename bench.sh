@@ -0,0 +1,6 @@
+echo "Compiling..."
+# the benchmark uses the package-private classes of XCompress.java, which -Xlint would flag as auxiliary classes
+javac -Xlint:all,-auxiliaryclass XCompress.java XCompressBenchmark.java
+
+# optional argument: compression level, e.g. ./bench.sh 9
+java XCompressBenchmark "$@"
@@ -0,0 +1,11 @@
+echo "Compiling..."
+# the load test uses the package-private classes of XCompress.java, which -Xlint would flag as auxiliary classes
+javac -Xlint:all,-auxiliaryclass XCompress.java XCompressLoadTest.java
+
+# optional arguments: clients, requests per client, payload files, e.g. ./loadtest.sh 16 2000 files/*.json
+SOCKET=/tmp/xcompress-loadtest.sock
+java XCompress -s "$SOCKET" &
+SERVER=$!
+while [ ! -S "$SOCKET" ]; do sleep 0.1; done
+java XCompressLoadTest "$SOCKET" "$@"
+kill $SERVER
@@ -27,4 +27,12 @@ java XCompress -c files/opg8-2021.pdf files/opg8-2021.pdf.lzh
 java XCompress -d files/opg8-2021.pdf.lzh files/opg8-2021.pdf.lzh.raw
 diff files/opg8-2021.pdf files/opg8-2021.pdf.lzh.raw
 ls -l files/opg8-2021.pdf files/opg8-2021.pdf.lzh files/opg8-2021.pdf.lzh.raw
-echo "-------------------------------"
\ No newline at end of file
+echo "-------------------------------"
+echo "----------batch----------"
+java XCompress -c --batch --outdir files/batch files/diverse.lyx files/diverse.pdf files/diverse.txt files/opg8-2021.pdf
+java XCompress -d --batch --outdir files/batch.raw files/batch
+for f in diverse.lyx diverse.pdf diverse.txt opg8-2021.pdf; do
+    diff files/$f files/batch.raw/$f
+done
+ls -l files/batch files/batch.raw
+echo "-------------------------------"